@@ -0,0 +1,99 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.esa.beam.aatsrrecalibration.util.SyntheticProductGenerator;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.GPF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.RenderedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full runs of the recalibration operator through {@link GPF#createProduct} on in-memory
+ * AATSR L1b products of 512 x N pixels. 16 bit reflectances are recalibrated in bulk on the
+ * raw sample buffers, 32 bit float reflectances take the per-pixel path.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecalibrateAATSRReflectancesOpBenchmark {
+
+    private static final String OPERATOR_ALIAS = "recalibrateAATSRReflectances";
+    private static final int SCENE_WIDTH = 512;
+
+    @Param({"2048", "16384"})
+    private int sceneHeight;
+
+    @Param({"int16", "float32"})
+    private String sampleType;
+
+    private Product sourceProduct;
+    private Map<String, Object> parameters;
+
+    @Setup
+    public void setUp() {
+        sourceProduct = new SyntheticProductGenerator(SCENE_WIDTH, sceneHeight)
+                .setReflectanceDataType("int16".equals(sampleType) ? ProductData.TYPE_INT16 : ProductData.TYPE_FLOAT32)
+                .createProduct();
+        parameters = new HashMap<String, Object>();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sourceProduct.dispose();
+    }
+
+    /**
+     * Operator initialisation only: drift table, context and target product set-up.
+     */
+    @Benchmark
+    public Product initialize() {
+        Product targetProduct = GPF.createProduct(OPERATOR_ALIAS, parameters, sourceProduct);
+        targetProduct.dispose();
+        return targetProduct;
+    }
+
+    /**
+     * Operator initialisation and computation of all tiles of the recalibrated bands.
+     */
+    @Benchmark
+    public Product recalibrate() {
+        Product targetProduct = GPF.createProduct(OPERATOR_ALIAS, parameters, sourceProduct);
+        try {
+            for (String bandName : SyntheticProductGenerator.REFLEC_BAND_NAMES) {
+                computeAllTiles(targetProduct.getBand(bandName).getSourceImage());
+            }
+        } finally {
+            targetProduct.dispose();
+        }
+        return targetProduct;
+    }
+
+    private static void computeAllTiles(RenderedImage image) {
+        for (int tileY = image.getMinTileY(); tileY < image.getMinTileY() + image.getNumYTiles(); tileY++) {
+            for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                image.getTile(tileX, tileY);
+            }
+        }
+    }
+}
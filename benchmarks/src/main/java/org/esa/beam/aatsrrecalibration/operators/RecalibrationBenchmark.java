@@ -0,0 +1,93 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the per-product steps of {@link Recalibration}: reading the drift table
+ * and resolving the times and indices the recalibration depends on.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecalibrationBenchmark {
+
+    private String sensingStart = "03-APR-2008 07:34:45";
+    private String vc1Filename = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
+
+    private Recalibration recalibration;
+
+    @Setup
+    public void setUp() throws IOException {
+        recalibration = new Recalibration(false, null);
+        recalibration.readDriftTable();
+    }
+
+    /**
+     * Drift table as read by each operator instance, i.e. from the process-wide cache.
+     */
+    @Benchmark
+    public Recalibration readDriftTable() throws IOException {
+        Recalibration recalibration = new Recalibration(false, null);
+        recalibration.readDriftTable();
+        return recalibration;
+    }
+
+    /**
+     * Drift table read from the bundled binary table, bypassing the cache.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public DriftTable readDriftTableBinary() throws IOException {
+        return DriftTableIO.readResource(Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME);
+    }
+
+    /**
+     * Drift table parsed from the bundled text table, bypassing the cache.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public DriftTable readDriftTableText() throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                Recalibration.class.getResourceAsStream(Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME)));
+        try {
+            return DriftTableIO.readText(bufferedReader);
+        } finally {
+            bufferedReader.close();
+        }
+    }
+
+    @Benchmark
+    public long getTimeInMillis() {
+        return recalibration.getTimeInMillis(sensingStart);
+    }
+
+    @Benchmark
+    public int getAcquisitionTimeIndex() {
+        return recalibration.getAcquisitionTimeIndex(sensingStart);
+    }
+
+    @Benchmark
+    public int getRemoveDriftCorrectionIndex() {
+        return recalibration.getRemoveDriftCorrectionIndex(vc1Filename);
+    }
+}
@@ -0,0 +1,116 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link RecalibrationKernel} on one row of 16 bit reflectance samples: per-pixel
+ * evaluation with scaling before and after, the {@code double} and {@code float} row kernels used by the
+ * operator for bands other than 16 bit, and the raw sample lookup table used for 16 bit bands.
+ * Results are samples per microsecond.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecalibrationKernelBenchmark {
+
+    // AATSR swath width
+    private static final int ROW_LENGTH = 512;
+    private static final double SCALING_FACTOR = 0.01;
+
+    @Param({"linear", "polynomial"})
+    private String kernelType;
+
+    private RecalibrationKernel kernel;
+    private RecalibrationKernel rawKernel;
+    private short[] lookupTable;
+    private short[] sourceSamples;
+    private short[] targetSamples;
+    private double[] doubleRow;
+    private float[] floatRow;
+
+    @Setup
+    public void setUp() {
+        final double gain = 1.0123;
+        if ("linear".equals(kernelType)) {
+            kernel = new RecalibrationKernel(gain);
+        } else {
+            kernel = new RecalibrationKernel(gain, new double[]{-0.0000273, 0.9982 * gain, 0.0000412, -0.0000009});
+        }
+        rawKernel = kernel.toRawSpace(SCALING_FACTOR, 0.0, SCALING_FACTOR, 0.0);
+        lookupTable = kernel.toLookupTable(SCALING_FACTOR, 0.0, SCALING_FACTOR, 0.0);
+
+        final Random random = new Random(42);
+        sourceSamples = new short[ROW_LENGTH];
+        for (int i = 0; i < ROW_LENGTH; i++) {
+            sourceSamples[i] = (short) random.nextInt(10000);
+        }
+        targetSamples = new short[ROW_LENGTH];
+        doubleRow = new double[ROW_LENGTH];
+        floatRow = new float[ROW_LENGTH];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_LENGTH)
+    public short[] doublePerPixel() {
+        for (int x = 0; x < ROW_LENGTH; x++) {
+            final double reflectance = kernel.apply(sourceSamples[x] * SCALING_FACTOR);
+            targetSamples[x] = (short) (int) (reflectance / SCALING_FACTOR);
+        }
+        return targetSamples;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_LENGTH)
+    public short[] doubleRow() {
+        for (int x = 0; x < ROW_LENGTH; x++) {
+            doubleRow[x] = sourceSamples[x] * SCALING_FACTOR;
+        }
+        kernel.apply(doubleRow, ROW_LENGTH);
+        for (int x = 0; x < ROW_LENGTH; x++) {
+            targetSamples[x] = (short) (int) (doubleRow[x] / SCALING_FACTOR);
+        }
+        return targetSamples;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_LENGTH)
+    public short[] floatRawRow() {
+        for (int x = 0; x < ROW_LENGTH; x++) {
+            floatRow[x] = sourceSamples[x];
+        }
+        rawKernel.apply(floatRow, ROW_LENGTH);
+        for (int x = 0; x < ROW_LENGTH; x++) {
+            targetSamples[x] = (short) (int) floatRow[x];
+        }
+        return targetSamples;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_LENGTH)
+    public short[] lookupTableRow() {
+        for (int x = 0; x < ROW_LENGTH; x++) {
+            targetSamples[x] = lookupTable[sourceSamples[x] & 0xffff];
+        }
+        return targetSamples;
+    }
+}
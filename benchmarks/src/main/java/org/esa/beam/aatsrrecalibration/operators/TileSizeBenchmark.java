@@ -0,0 +1,117 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.esa.beam.aatsrrecalibration.util.SyntheticProductGenerator;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.GPF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.RenderedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recalibration of a full AATSR L1b scene of 512 x 40000 pixels with candidate target tile sizes:
+ * the automatic choice, full-width strips of different heights and square tiles. The peak heap
+ * usage of each measurement iteration is written to the console.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TileSizeBenchmark {
+
+    private static final String OPERATOR_ALIAS = "recalibrateAATSRReflectances";
+    private static final int SCENE_WIDTH = 512;
+    private static final int SCENE_HEIGHT = 40000;
+
+    @Param({"auto", "512x32", "512x256", "512x1024", "512x4096", "128x128", "256x256"})
+    private String tileSize;
+
+    private Product sourceProduct;
+    private Map<String, Object> parameters;
+
+    @Setup
+    public void setUp() {
+        sourceProduct = new SyntheticProductGenerator(SCENE_WIDTH, SCENE_HEIGHT)
+                .setReflectanceDataType(ProductData.TYPE_INT16)
+                .createProduct();
+        parameters = new HashMap<String, Object>();
+        if (!"auto".equals(tileSize)) {
+            final String[] size = tileSize.split("x");
+            parameters.put("tileWidth", Integer.parseInt(size[0]));
+            parameters.put("tileHeight", Integer.parseInt(size[1]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sourceProduct.dispose();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPeakUsage() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void printPeakUsage() {
+        long peakBytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakBytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println("tile size " + tileSize + ": peak heap " + peakBytes / (1024 * 1024) + " MB");
+    }
+
+    /**
+     * Operator initialisation and computation of all tiles of the recalibrated bands.
+     */
+    @Benchmark
+    public Product recalibrate() {
+        Product targetProduct = GPF.createProduct(OPERATOR_ALIAS, parameters, sourceProduct);
+        try {
+            for (String bandName : SyntheticProductGenerator.REFLEC_BAND_NAMES) {
+                computeAllTiles(targetProduct.getBand(bandName).getSourceImage());
+            }
+        } finally {
+            targetProduct.dispose();
+        }
+        return targetProduct;
+    }
+
+    private static void computeAllTiles(RenderedImage image) {
+        for (int tileY = image.getMinTileY(); tileY < image.getMinTileY() + image.getNumYTiles(); tileY++) {
+            for (int tileX = image.getMinTileX(); tileX < image.getMinTileX() + image.getNumXTiles(); tileX++) {
+                image.getTile(tileX, tileY);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link TimeParser}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeParserBenchmark {
+
+    private String monthNameTime = "03-APR-2002 07:34:45";
+    private String monthNumberTime = "03-04-2002 07:34:45";
+    private String vc1Filename = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
+
+    @Benchmark
+    public long parseMillisMonthName() {
+        return TimeParser.parseMillis(monthNameTime);
+    }
+
+    @Benchmark
+    public long parseMillisMonthNumber() {
+        return TimeParser.parseMillis(monthNumberTime);
+    }
+
+    @Benchmark
+    public long parseEpochDay() {
+        return TimeParser.parseEpochDay(monthNameTime);
+    }
+
+    @Benchmark
+    public long parseCompactMillis() {
+        return TimeParser.parseCompactMillis(vc1Filename, 14);
+    }
+}
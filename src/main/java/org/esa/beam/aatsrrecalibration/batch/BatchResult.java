@@ -0,0 +1,134 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Summary of the recalibration of one product in a batch run.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class BatchResult {
+
+    public enum Status {
+        RECALIBRATED,
+        SKIPPED,
+        FAILED
+    }
+
+    public static final String CSV_HEADER =
+            "product,status,width,height,read_ms,wait_ms,process_ms,total_ms,mpixels_per_s,output,message";
+
+    private final File productFile;
+    private Status status;
+    private String message = "";
+    private File outputFile;
+    private int width;
+    private int height;
+    private long readMillis;
+    private long waitMillis;
+    private long processMillis;
+
+    public BatchResult(File productFile) {
+        this.productFile = productFile;
+    }
+
+    public File getProductFile() {
+        return productFile;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    void setStatus(Status status, String message) {
+        this.status = status;
+        this.message = message != null ? message : "";
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public long getReadMillis() {
+        return readMillis;
+    }
+
+    void setReadMillis(long readMillis) {
+        this.readMillis = readMillis;
+    }
+
+    /**
+     * @return the time spent waiting for the memory budget
+     */
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    void setWaitMillis(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+
+    public long getProcessMillis() {
+        return processMillis;
+    }
+
+    void setProcessMillis(long processMillis) {
+        this.processMillis = processMillis;
+    }
+
+    public long getTotalMillis() {
+        return readMillis + waitMillis + processMillis;
+    }
+
+    /**
+     * @return the processed pixels per second in millions, 0 if nothing was processed
+     */
+    public double getMegaPixelsPerSecond() {
+        if (processMillis <= 0) {
+            return 0.0;
+        }
+        return (double) width * height / processMillis / 1000.0;
+    }
+
+    /**
+     * This method formats the result as a line of the batch summary, see {@link #CSV_HEADER}
+     *
+     * @return the CSV line
+     */
+    public String toCsvLine() {
+        return csv(productFile.getName()) + "," + status + "," + width + "," + height + "," +
+               readMillis + "," + waitMillis + "," + processMillis + "," + getTotalMillis() + "," +
+               String.format(Locale.ENGLISH, "%.3f", getMegaPixelsPerSecond()) + "," +
+               csv(outputFile != null ? outputFile.getPath() : "") + "," + csv(message);
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+    }
+}
@@ -0,0 +1,183 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Main product header (MPH) and data set descriptors (DSD) of an ENVISAT N1 file, read without
+ * the product reader. Only the ASCII header bytes at the start of the file are read: the MPH of
+ * fixed size, followed by the SPH whose last part holds the DSDs.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class N1Header {
+
+    public static final int MPH_SIZE = 1247;
+
+    // largest SPH accepted, AATSR L1b products have about 10 kB
+    private static final int MAX_SPH_SIZE = 1024 * 1024;
+
+    private final Map<String, String> mph;
+    private final List<Map<String, String>> dsds;
+
+    private N1Header(Map<String, String> mph, List<Map<String, String>> dsds) {
+        this.mph = mph;
+        this.dsds = dsds;
+    }
+
+    /**
+     * This method reads the header of an N1 file
+     *
+     * @param file - the N1 file
+     *
+     * @return the header
+     *
+     * @throws IOException if the file cannot be read or is not an N1 file
+     */
+    public static N1Header read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] mphBytes = new byte[MPH_SIZE];
+            raf.readFully(mphBytes);
+            Map<String, String> mph = parse(mphBytes, 0, MPH_SIZE);
+            if (!mph.containsKey("PRODUCT") || !mph.containsKey("SPH_SIZE")) {
+                throw new IOException("Not an ENVISAT N1 file: '" + file + "'.");
+            }
+
+            final long sphSize = parseLong(mph, "SPH_SIZE");
+            final long numDsd = parseLong(mph, "NUM_DSD");
+            final long dsdSize = parseLong(mph, "DSD_SIZE");
+            if (sphSize < 0 || sphSize > MAX_SPH_SIZE || numDsd < 0 || dsdSize <= 0 || numDsd * dsdSize > sphSize) {
+                throw new IOException("Invalid SPH or DSD size in '" + file + "'.");
+            }
+            final int dsdsSize = (int) (numDsd * dsdSize);
+            byte[] dsdBytes = new byte[dsdsSize];
+            raf.seek(MPH_SIZE + sphSize - dsdsSize);
+            raf.readFully(dsdBytes);
+
+            List<Map<String, String>> dsds = new ArrayList<Map<String, String>>((int) numDsd);
+            for (int i = 0; i < numDsd; i++) {
+                dsds.add(Collections.unmodifiableMap(parse(dsdBytes, (int) (i * dsdSize), (int) dsdSize)));
+            }
+            return new N1Header(Collections.unmodifiableMap(mph), Collections.unmodifiableList(dsds));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the MPH entries, with quotes and units removed from the values
+     */
+    public Map<String, String> getMph() {
+        return mph;
+    }
+
+    /**
+     * @return the DSDs, each with quotes and units removed from the values
+     */
+    public List<Map<String, String>> getDsds() {
+        return dsds;
+    }
+
+    public String getProductName() {
+        return mph.get("PRODUCT");
+    }
+
+    public String getSensingStart() {
+        return mph.get("SENSING_START");
+    }
+
+    /**
+     * @param prefix - file name prefix, e.g. ATS_VC1_
+     *
+     * @return the FILENAME of the first DSD referencing a file with the given prefix, or null
+     */
+    public String getDsdFileName(String prefix) {
+        for (Map<String, String> dsd : dsds) {
+            final String fileName = dsd.get("FILENAME");
+            if (fileName != null && fileName.startsWith(prefix)) {
+                return fileName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param dsName - data set name, e.g. 550_NM_NADIR_TOA_MDS
+     *
+     * @return the DSD with the given name, or null
+     */
+    public Map<String, String> getDsd(String dsName) {
+        for (Map<String, String> dsd : dsds) {
+            if (dsName.equals(dsd.get("DS_NAME"))) {
+                return dsd;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param entries - MPH or DSD entries
+     * @param key     - the key
+     *
+     * @return the numeric value of the entry
+     *
+     * @throws IOException if the entry is missing or not a number
+     */
+    public static long parseLong(Map<String, String> entries, String key) throws IOException {
+        final String value = entries.get(key);
+        if (value == null) {
+            throw new IOException("Header entry " + key + " missing.");
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Header entry " + key + " is not a number: " + value, e);
+        }
+    }
+
+    private static Map<String, String> parse(byte[] bytes, int offset, int length) {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        int lineStart = offset;
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] == '\n') {
+                parseLine(bytes, lineStart, i, entries);
+                lineStart = i + 1;
+            }
+        }
+        return entries;
+    }
+
+    private static void parseLine(byte[] bytes, int start, int end, Map<String, String> entries) {
+        int equals = -1;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '=') {
+                equals = i;
+                break;
+            }
+        }
+        if (equals <= start) {
+            return;
+        }
+        final String key = new String(bytes, start, equals - start).trim();
+        String value = new String(bytes, equals + 1, end - equals - 1);
+        if (value.startsWith("\"")) {
+            final int closingQuote = value.indexOf('"', 1);
+            value = value.substring(1, closingQuote > 0 ? closingQuote : value.length());
+        } else {
+            // numbers, e.g. +0000006099<bytes>
+            final int unit = value.indexOf('<');
+            if (unit >= 0) {
+                value = value.substring(0, unit);
+            }
+        }
+        entries.put(key, value.trim());
+    }
+}
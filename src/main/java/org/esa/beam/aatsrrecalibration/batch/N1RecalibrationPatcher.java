@@ -0,0 +1,357 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import org.esa.beam.aatsrrecalibration.operators.RecalibrateAATSRReflectancesOp;
+import org.esa.beam.aatsrrecalibration.operators.Recalibration;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrationContext;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrationKernel;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recalibration of AATSR L1b N1 files without the product reader and writer. The file is copied
+ * channel to channel, then only the records of the reflectance measurement data sets (MDS) are
+ * rewritten in place. Brightness temperatures, ADS and tie points are never decoded.
+ * <p/>
+ * Each MDS record ends with the 512 big-endian int16 pixels of one scan, so the pixels are patched
+ * regardless of the record header layout. Negative raw values are exception codes and are kept. As in the
+ * operator, pixels flagged as not measured in the confid words of their view (see
+ * {@link RecalibrateAATSRReflectancesOp#INVALID_CONFID_FLAGS}) are kept as well. The confid words MDS has
+ * one record per scan with the same layout; files without it are recalibrated at all other pixels.
+ * <p/>
+ * The MPH of the copy gets a RECALIBRATED="YES" entry in its blank spare line. This entry is seen by
+ * {@link N1Header} and {@link N1TriageScanner}, but not by the BEAM product reader, which reads the MPH
+ * fields at fixed positions. The operator therefore also reads it from the N1 file of its source product.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class N1RecalibrationPatcher {
+
+    public static final int SCENE_WIDTH = 512;
+    public static final double REFLECTANCE_SCALING_FACTOR = 0.01;
+
+    private static final String AATSR_L1B_PRODUCT_PREFIX = "ATS_TOA_1P";
+    private static final String RECALIBRATED_ENTRY = "RECALIBRATED=\"YES\"";
+    // number of records read and written at once
+    private static final int RECORDS_PER_CHUNK = 256;
+
+    // reflectance band name -> MDS name
+    private static final Map<String, String> MDS_NAMES = new LinkedHashMap<String, String>();
+
+    static {
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME, "550_NM_NADIR_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0670_BAND_NAME, "670_NM_NADIR_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0870_BAND_NAME, "870_NM_NADIR_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_1600_BAND_NAME, "1600_NM_NADIR_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_FWARD_0550_BAND_NAME, "550_NM_FWARD_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_FWARD_0670_BAND_NAME, "670_NM_FWARD_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_FWARD_0870_BAND_NAME, "870_NM_FWARD_TOA_MDS");
+        MDS_NAMES.put(EnvisatConstants.AATSR_L1B_REFLEC_FWARD_1600_BAND_NAME, "1600_NM_FWARD_TOA_MDS");
+    }
+
+    private final boolean useOwnDriftTable;
+    private final File driftTableFile;
+    private List<String> bandNames = Arrays.asList(MDS_NAMES.keySet().toArray(new String[MDS_NAMES.size()]));
+
+    /**
+     * @param driftTableFile - own drift corrections table, or null for the default table
+     */
+    public N1RecalibrationPatcher(File driftTableFile) {
+        this.useOwnDriftTable = driftTableFile != null;
+        this.driftTableFile = driftTableFile;
+    }
+
+    /**
+     * @param bandNames - the reflectance bands to be recalibrated (default: all)
+     */
+    public void setBandNames(List<String> bandNames) {
+        for (String bandName : bandNames) {
+            if (!MDS_NAMES.containsKey(bandName)) {
+                throw new IllegalArgumentException("Not an AATSR reflectance band: " + bandName);
+            }
+        }
+        this.bandNames = bandNames;
+    }
+
+    /**
+     * @param bandName - a reflectance band name, e.g. reflec_nadir_0550
+     *
+     * @return the name of the corresponding MDS, or null
+     */
+    public static String getMdsName(String bandName) {
+        return MDS_NAMES.get(bandName);
+    }
+
+    /**
+     * This method writes a recalibrated copy of an N1 file
+     *
+     * @param sourceFile - the AATSR L1b N1 file
+     * @param targetFile - the recalibrated copy, only written if the product is recalibrated
+     *
+     * @return null if the copy was written, otherwise the reason why the product was skipped
+     *
+     * @throws IOException if the file cannot be read, is not an AATSR L1b product or cannot be written
+     */
+    public String patch(File sourceFile, File targetFile) throws IOException {
+        final N1Header header = N1Header.read(sourceFile);
+        final String productName = header.getProductName();
+        if (productName == null || !productName.startsWith(AATSR_L1B_PRODUCT_PREFIX)) {
+            throw new IOException("Not an AATSR L1b product: '" + sourceFile + "'.");
+        }
+        if ("YES".equals(header.getMph().get("RECALIBRATED"))) {
+            return RecalibrateAATSRReflectancesOp.SKIPPED_ALREADY_RECALIBRATED;
+        }
+
+        final RecalibrationContext context = createContext(header, sourceFile);
+        if (context == null) {
+            return RecalibrateAATSRReflectancesOp.SKIPPED_OUT_OF_RANGE;
+        }
+        if (context.getKernels().isEmpty()) {
+            return RecalibrateAATSRReflectancesOp.SKIPPED_NO_BAND_SELECTED;
+        }
+
+        copy(sourceFile, targetFile);
+        boolean patched = false;
+        RandomAccessFile raf = new RandomAccessFile(targetFile, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            for (Map.Entry<String, RecalibrationKernel> entry : context.getKernels().entrySet()) {
+                patchDataset(channel, header.getDsd(MDS_NAMES.get(entry.getKey())),
+                             getConfidDsd(header, entry.getKey()), entry.getValue());
+            }
+            patchMph(channel);
+            patched = true;
+        } finally {
+            raf.close();
+            if (!patched && !targetFile.delete()) {
+                targetFile.deleteOnExit();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method copies a file channel to channel
+     *
+     * @param sourceFile - the source file
+     * @param targetFile - the target file
+     *
+     * @throws IOException if the copy fails
+     */
+    public static void copy(File sourceFile, File targetFile) throws IOException {
+        FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            RandomAccessFile out = new RandomAccessFile(targetFile, "rw");
+            try {
+                final FileChannel sourceChannel = in.getChannel();
+                final FileChannel targetChannel = out.getChannel();
+                final long size = sourceChannel.size();
+                targetChannel.truncate(0);
+                long position = 0;
+                while (position < size) {
+                    position += sourceChannel.transferTo(position, size - position, targetChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private RecalibrationContext createContext(N1Header header, File sourceFile) throws IOException {
+        final String sensingStart = header.getSensingStart();
+        final String vc1Filename = header.getDsdFileName("ATS_VC1_");
+        final String gc1Filename = header.getDsdFileName("ATS_GC1_");
+        if (sensingStart == null || sensingStart.length() < 20 || vc1Filename == null || gc1Filename == null) {
+            throw new IOException("SENSING_START, VC1 or GC1 file name missing in '" + sourceFile + "'.");
+        }
+
+        // the drift table comes from the cache, so a new instance per product is cheap
+        final Recalibration recalibration = new Recalibration(useOwnDriftTable, driftTableFile);
+        recalibration.readDriftTable();
+        if (!recalibration.checkAcquisitionTimeRange(sensingStart.substring(0, 20))) {
+            return null;
+        }
+
+        Map<String, Integer> bandChannels = new HashMap<String, Integer>();
+        for (String bandName : bandNames) {
+            // datasets missing in the file are left alone
+            if (header.getDsd(MDS_NAMES.get(bandName)) != null) {
+                bandChannels.put(bandName, getChannelIndex(bandName));
+            }
+        }
+        return new RecalibrationContext(recalibration, sensingStart.substring(0, 20), vc1Filename, gc1Filename,
+                                        bandChannels);
+    }
+
+    /**
+     * This method provides the DSD of the confid words MDS of the view of a reflectance band
+     *
+     * @param header   - the N1 header
+     * @param bandName - the reflectance band name
+     *
+     * @return the DSD, or null if the file has no confid words for this view
+     */
+    private static Map<String, String> getConfidDsd(N1Header header, String bandName) {
+        final String view = bandName.contains("_fward_") ? "FWARD" : "NADIR";
+        for (Map<String, String> dsd : header.getDsds()) {
+            final String dsName = dsd.get("DS_NAME");
+            if ("M".equals(dsd.get("DS_TYPE")) && dsName != null && dsName.contains("CONFID") &&
+                dsName.contains(view)) {
+                return dsd;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method recalibrates the pixels of all records of one MDS in place
+     *
+     * @param channel   - the target file channel
+     * @param dsd       - the DSD of the MDS
+     * @param confidDsd - the DSD of the confid words MDS of the same view, or null
+     * @param kernel    - the recalibration kernel, in reflectance space
+     *
+     * @throws IOException if the records cannot be read or written
+     */
+    private static void patchDataset(FileChannel channel, Map<String, String> dsd, Map<String, String> confidDsd,
+                                     RecalibrationKernel kernel) throws IOException {
+        final long offset = N1Header.parseLong(dsd, "DS_OFFSET");
+        final int numDsr = (int) N1Header.parseLong(dsd, "NUM_DSR");
+        final int dsrSize = (int) N1Header.parseLong(dsd, "DSR_SIZE");
+        final int pixelOffset = dsrSize - 2 * SCENE_WIDTH;
+        if (pixelOffset < 0 || offset + (long) numDsr * dsrSize > channel.size()) {
+            throw new IOException("Invalid MDS " + dsd.get("DS_NAME") + ".");
+        }
+        long confidOffset = 0;
+        int confidDsrSize = 0;
+        int flagOffset = 0;
+        ByteBuffer confidBuffer = null;
+        if (confidDsd != null) {
+            confidOffset = N1Header.parseLong(confidDsd, "DS_OFFSET");
+            confidDsrSize = (int) N1Header.parseLong(confidDsd, "DSR_SIZE");
+            flagOffset = confidDsrSize - 2 * SCENE_WIDTH;
+            // one record of confid words per scan
+            if (flagOffset < 0 || N1Header.parseLong(confidDsd, "NUM_DSR") != numDsr ||
+                confidOffset + (long) numDsr * confidDsrSize > channel.size()) {
+                throw new IOException("Invalid MDS " + confidDsd.get("DS_NAME") + ".");
+            }
+            confidBuffer = ByteBuffer.allocate(Math.min(numDsr, RECORDS_PER_CHUNK) * confidDsrSize);
+            confidBuffer.order(ByteOrder.BIG_ENDIAN);
+        }
+        final short[] lookupTable = kernel.toLookupTable(REFLECTANCE_SCALING_FACTOR, 0.0,
+                                                         REFLECTANCE_SCALING_FACTOR, 0.0);
+        // exception codes are negative and are kept
+        for (int raw = Short.MIN_VALUE; raw < 0; raw++) {
+            lookupTable[raw & 0xffff] = (short) raw;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(numDsr, RECORDS_PER_CHUNK) * dsrSize);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int record = 0; record < numDsr; record += RECORDS_PER_CHUNK) {
+            final int records = Math.min(RECORDS_PER_CHUNK, numDsr - record);
+            final long position = offset + (long) record * dsrSize;
+            buffer.clear();
+            buffer.limit(records * dsrSize);
+            readFully(channel, buffer, position);
+            if (confidBuffer != null) {
+                confidBuffer.clear();
+                confidBuffer.limit(records * confidDsrSize);
+                readFully(channel, confidBuffer, confidOffset + (long) record * confidDsrSize);
+            }
+
+            for (int r = 0; r < records; r++) {
+                final int pixelStart = r * dsrSize + pixelOffset;
+                final int flagStart = r * confidDsrSize + flagOffset;
+                for (int x = 0; x < SCENE_WIDTH; x++) {
+                    if (confidBuffer != null && (confidBuffer.getShort(flagStart + 2 * x) &
+                                                 RecalibrateAATSRReflectancesOp.INVALID_CONFID_FLAGS) != 0) {
+                        continue;
+                    }
+                    final int index = pixelStart + 2 * x;
+                    buffer.putShort(index, lookupTable[buffer.getShort(index) & 0xffff]);
+                }
+            }
+
+            buffer.flip();
+            writeFully(channel, buffer, position);
+        }
+    }
+
+    /**
+     * This method writes the RECALIBRATED entry into the first blank line of the MPH which is long enough
+     *
+     * @param channel - the target file channel
+     *
+     * @throws IOException if the MPH has no blank line long enough
+     */
+    private static void patchMph(FileChannel channel) throws IOException {
+        final ByteBuffer mph = ByteBuffer.allocate(N1Header.MPH_SIZE);
+        readFully(channel, mph, 0);
+        final byte[] bytes = mph.array();
+
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                if (i - lineStart >= RECALIBRATED_ENTRY.length() && isBlank(bytes, lineStart, i)) {
+                    final byte[] entry = RECALIBRATED_ENTRY.getBytes("US-ASCII");
+                    System.arraycopy(entry, 0, bytes, lineStart, entry.length);
+                    mph.clear();
+                    writeFully(channel, mph, 0);
+                    return;
+                }
+                lineStart = i + 1;
+            }
+        }
+        throw new IOException("No spare space in MPH for the RECALIBRATED flag.");
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static int getChannelIndex(String bandName) {
+        if (bandName.endsWith("0550")) {
+            return Recalibration.CHANNEL550;
+        } else if (bandName.endsWith("0670")) {
+            return Recalibration.CHANNEL670;
+        } else if (bandName.endsWith("0870")) {
+            return Recalibration.CHANNEL870;
+        } else {
+            return Recalibration.CHANNEL1600;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import org.esa.beam.aatsrrecalibration.operators.DriftTable;
+import org.esa.beam.aatsrrecalibration.operators.DriftTableCache;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrateAATSRReflectancesOp;
+import org.esa.beam.aatsrrecalibration.operators.Recalibration;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrationContext;
+import org.esa.beam.aatsrrecalibration.util.TimeParser;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Classifies AATSR L1b N1 files from their headers only, without opening them with the product reader:
+ * <ul>
+ * <li>RECALIBRATE: the product will be recalibrated</li>
+ * <li>PASS_THROUGH: the acquisition time is outside the drift table, the product would be written unchanged</li>
+ * <li>SKIP: the product is already recalibrated or is not an AATSR L1b product</li>
+ * <li>INVALID: the header cannot be read or lacks information the recalibration needs</li>
+ * </ul>
+ * The drift correction regime is determined from the VC1 file name.
+ * <p/>
+ * Usage: N1TriageScanner [-threads &lt;n&gt;] [-driftTable &lt;file&gt;] [-output &lt;csv file&gt;]
+ * &lt;product file | directory | @list file&gt;...
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class N1TriageScanner {
+
+    public enum Decision {
+        RECALIBRATE,
+        PASS_THROUGH,
+        SKIP,
+        INVALID
+    }
+
+    public static final String CSV_HEADER = "product,decision,sensing_start,regime,nonlinear_gc1,vc1,gc1,reason";
+
+    private static final String AATSR_L1B_PRODUCT_PREFIX = "ATS_TOA_1P";
+    private static final long ENVISAT_LAUNCH = TimeParser.parseMillis(RecalibrationContext.ENVISAT_LAUNCH);
+
+    private final DriftTable driftTable;
+    private final Recalibration recalibration;
+    private int threadCount = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param driftTableFile - own drift corrections table, or null for the default table
+     *
+     * @throws IOException if the drift table cannot be read
+     */
+    public N1TriageScanner(File driftTableFile) throws IOException {
+        if (driftTableFile != null) {
+            driftTable = DriftTableCache.getInstance().getFileTable(driftTableFile);
+        } else {
+            driftTable = DriftTableCache.getInstance().getResourceTable(Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME);
+        }
+        recalibration = new Recalibration(false, null);
+    }
+
+    /**
+     * @param threadCount - number of files scanned at the same time; header reads are I/O bound
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+
+    public static void main(String[] args) {
+        List<String> inputs = new ArrayList<String>();
+        File driftTable = null;
+        File output = null;
+        int threads = -1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (arg.equals("-threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-driftTable")) {
+                    driftTable = new File(args[++i]);
+                } else if (arg.equals("-output")) {
+                    output = new File(args[++i]);
+                } else if (arg.startsWith("-")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    inputs.add(arg);
+                }
+            }
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("No input products given.");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: N1TriageScanner [-threads <n>] [-driftTable <file>] [-output <csv file>] " +
+                               "<product file | directory | @list file>...");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            N1TriageScanner scanner = new N1TriageScanner(driftTable);
+            if (threads != -1) {
+                scanner.setThreadCount(threads);
+            }
+            List<Result> results = scanner.scan(RecalibrationBatch.collectProductFiles(inputs));
+            Writer writer = output != null ? new FileWriter(output) : new OutputStreamWriter(System.out);
+            PrintWriter printWriter = new PrintWriter(writer);
+            printWriter.println(CSV_HEADER);
+            for (Result result : results) {
+                printWriter.println(result.toCsvLine());
+            }
+            if (output != null) {
+                printWriter.close();
+            } else {
+                printWriter.flush();
+            }
+        } catch (Exception e) {
+            System.err.println("AATSR triage failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * This method classifies the given files in parallel
+     *
+     * @param files - the N1 files
+     *
+     * @return the results, in the order of the files
+     *
+     * @throws InterruptedException if the scan is interrupted
+     */
+    public List<Result> scan(List<File> files) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, files.size())));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(files.size());
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return classify(file);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>(files.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Result result = new Result(files.get(i));
+                    result.decision = Decision.INVALID;
+                    result.reason = String.valueOf(e.getCause());
+                    results.add(result);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * This method classifies a single file
+     *
+     * @param file - the N1 file
+     *
+     * @return the result
+     */
+    public Result classify(File file) {
+        Result result = new Result(file);
+        try {
+            N1Header header = N1Header.read(file);
+            classify(header, result);
+        } catch (IOException e) {
+            result.decision = Decision.INVALID;
+            result.reason = e.getMessage();
+        } catch (RuntimeException e) {
+            result.decision = Decision.INVALID;
+            result.reason = "Invalid header: " + e.getMessage();
+        }
+        return result;
+    }
+
+    private void classify(N1Header header, Result result) {
+        final String productName = header.getProductName();
+        if (productName == null || !productName.startsWith(AATSR_L1B_PRODUCT_PREFIX)) {
+            result.decision = Decision.SKIP;
+            result.reason = "not an AATSR L1b product";
+            return;
+        }
+        if ("YES".equals(header.getMph().get("RECALIBRATED"))) {
+            result.decision = Decision.SKIP;
+            result.reason = RecalibrateAATSRReflectancesOp.SKIPPED_ALREADY_RECALIBRATED;
+            return;
+        }
+
+        final String sensingStart = header.getSensingStart();
+        if (sensingStart == null || sensingStart.length() < 20) {
+            result.decision = Decision.INVALID;
+            result.reason = "SENSING_START missing";
+            return;
+        }
+        result.sensingStart = sensingStart.substring(0, 20);
+        result.vc1FileName = header.getDsdFileName("ATS_VC1_");
+        result.gc1FileName = header.getDsdFileName("ATS_GC1_");
+        if (result.vc1FileName == null || result.gc1FileName == null) {
+            result.decision = Decision.INVALID;
+            result.reason = "VC1 or GC1 file name missing";
+            return;
+        }
+        result.regime = recalibration.getRemoveDriftCorrectionIndex(result.vc1FileName);
+        result.nonlinearGc1 = recalibration.isV16NonlinearityCorrectionRequired(result.gc1FileName);
+
+        final long sensingStartMillis = TimeParser.parseMillis(result.sensingStart);
+        if (sensingStartMillis < ENVISAT_LAUNCH) {
+            result.decision = Decision.INVALID;
+            result.reason = "acquisition time before ENVISAT launch date";
+        } else if (sensingStartMillis < driftTable.getTime(0) ||
+                   sensingStartMillis > driftTable.getTime(driftTable.getLength() - 1)) {
+            result.decision = Decision.PASS_THROUGH;
+            result.reason = RecalibrateAATSRReflectancesOp.SKIPPED_OUT_OF_RANGE;
+        } else {
+            result.decision = Decision.RECALIBRATE;
+        }
+    }
+
+    /**
+     * @param regime - drift correction index as determined by {@link Recalibration#getRemoveDriftCorrectionIndex}
+     *
+     * @return the name of the drift correction regime
+     */
+    public static String getRegimeName(int regime) {
+        switch (regime) {
+            case Recalibration.NO_DRIFT_CORRECTION:
+                return "NONE";
+            case Recalibration.EXPONENTIAL_DRIFT_CORRECTION:
+                return "EXPONENTIAL";
+            case Recalibration.THIN_FILM_DRIFT_CORRECTION:
+                return "THIN_FILM";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Classification of one file.
+     */
+    public static class Result {
+
+        private final File file;
+        private Decision decision;
+        private String reason = "";
+        private String sensingStart = "";
+        private String vc1FileName;
+        private String gc1FileName;
+        private int regime = -1;
+        private boolean nonlinearGc1;
+
+        Result(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Decision getDecision() {
+            return decision;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public String getSensingStart() {
+            return sensingStart;
+        }
+
+        public String getVc1FileName() {
+            return vc1FileName;
+        }
+
+        public String getGc1FileName() {
+            return gc1FileName;
+        }
+
+        /**
+         * @return the drift correction index, or -1 if not determined
+         */
+        public int getRegime() {
+            return regime;
+        }
+
+        public boolean isNonlinearGc1() {
+            return nonlinearGc1;
+        }
+
+        public String toCsvLine() {
+            return file.getName() + "," + decision + "," + sensingStart + "," + getRegimeName(regime) + "," +
+                   (regime >= 0 ? String.valueOf(nonlinearGc1) : "") + "," +
+                   (vc1FileName != null ? vc1FileName : "") + "," + (gc1FileName != null ? gc1FileName : "") + "," +
+                   (reason.indexOf(',') >= 0 ? "\"" + reason.replace("\"", "\"\"") + "\"" : reason);
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrateAATSRReflectancesOp;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrationMetrics;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticEvent;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticsChannel;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticsListener;
+import org.esa.beam.aatsrrecalibration.util.RecalibrationUtils;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.GPF;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Headless batch recalibration of AATSR L1b products. Several products are processed at the same time
+ * in one JVM, all sharing the parsed drift table. The number of products in work is bounded by the
+ * number of workers and by a memory budget, for which each product is accounted with twice the size of
+ * its rasters in memory (source data and recalibrated bands), independent of the file format. Skipped
+ * products take no memory from the budget. A summary with status, timings and throughput per product
+ * is written as CSV.
+ * <p/>
+ * N1 files are classified from their headers with {@link N1TriageScanner} first. Products which are
+ * already recalibrated, or which are outside the drift table, are skipped without being opened. With
+ * -writeUnchanged, the latter are written to the output unchanged.
+ * <p/>
+ * With the output format N1, N1 inputs are not opened with the product reader at all: a copy of each file
+ * is recalibrated in place by {@link N1RecalibrationPatcher}.
+ * <p/>
+ * Usage: RecalibrationBatch -output &lt;dir&gt; [options] &lt;product file | directory | @list file&gt;...
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class RecalibrationBatch {
+
+    public static final String OPERATOR_ALIAS = "recalibrateAATSRReflectances";
+    public static final String DEFAULT_FORMAT = "BEAM-DIMAP";
+    // patches a copy of the N1 file instead of writing the product with a BEAM writer
+    public static final String N1_FORMAT = "N1";
+    public static final int DEFAULT_MEMORY_BUDGET_MB = 1024;
+
+    private static final String USAGE =
+            "Usage: RecalibrationBatch -output <dir> [options] <product file | directory | @list file>...\n" +
+            "Options:\n" +
+            "  -workers <n>       number of products processed at the same time (default: number of processors)\n" +
+            "  -memory <mb>       memory budget for the products in work (default: " + DEFAULT_MEMORY_BUDGET_MB + ")\n" +
+            "  -driftTable <file> own drift corrections table\n" +
+            "  -format <name>     output format (default: " + DEFAULT_FORMAT + "), " + N1_FORMAT +
+            " patches a copy of N1 inputs in place\n" +
+            "  -writeUnchanged    write products outside the drift table unchanged instead of skipping them\n" +
+            "  -summary <file>    summary file (default: <output dir>/recalibration-summary.csv)";
+
+    private final File outputDir;
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    private int memoryBudgetMB = DEFAULT_MEMORY_BUDGET_MB;
+    private File driftTableFile;
+    private String formatName = DEFAULT_FORMAT;
+    private boolean writeUnchanged;
+
+    public RecalibrationBatch(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Number of workers must be at least 1.");
+        }
+        this.workerCount = workerCount;
+    }
+
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        if (memoryBudgetMB < 1) {
+            throw new IllegalArgumentException("Memory budget must be at least 1 MB.");
+        }
+        this.memoryBudgetMB = memoryBudgetMB;
+    }
+
+    public void setDriftTableFile(File driftTableFile) {
+        this.driftTableFile = driftTableFile;
+    }
+
+    public void setFormatName(String formatName) {
+        this.formatName = formatName;
+    }
+
+    /**
+     * @param writeUnchanged - true if products outside the drift table shall be written unchanged
+     *                       instead of being skipped
+     */
+    public void setWriteUnchanged(boolean writeUnchanged) {
+        this.writeUnchanged = writeUnchanged;
+    }
+
+    public static void main(String[] args) {
+        File outputDir = null;
+        File summaryFile = null;
+        List<String> inputs = new ArrayList<String>();
+        RecalibrationBatch batch;
+        int workers = -1;
+        int memory = -1;
+        File driftTable = null;
+        String format = null;
+        boolean unchanged = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (arg.equals("-output")) {
+                    outputDir = new File(args[++i]);
+                } else if (arg.equals("-workers")) {
+                    workers = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-memory")) {
+                    memory = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-driftTable")) {
+                    driftTable = new File(args[++i]);
+                } else if (arg.equals("-format")) {
+                    format = args[++i];
+                } else if (arg.equals("-writeUnchanged")) {
+                    unchanged = true;
+                } else if (arg.equals("-summary")) {
+                    summaryFile = new File(args[++i]);
+                } else if (arg.startsWith("-")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    inputs.add(arg);
+                }
+            }
+            if (outputDir == null || inputs.isEmpty()) {
+                throw new IllegalArgumentException("Output directory and input products are required.");
+            }
+            batch = new RecalibrationBatch(outputDir);
+            if (workers != -1) {
+                batch.setWorkerCount(workers);
+            }
+            if (memory != -1) {
+                batch.setMemoryBudgetMB(memory);
+            }
+            batch.setDriftTableFile(driftTable);
+            if (format != null) {
+                batch.setFormatName(format);
+            }
+            batch.setWriteUnchanged(unchanged);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // the batch runs on the console, so the events are shown there as well as in the log
+        DiagnosticsChannel.getInstance().addListener(new DiagnosticsListener() {
+            @Override
+            public void eventPublished(DiagnosticEvent event) {
+                System.out.println(event);
+            }
+        });
+        try {
+            List<File> productFiles = collectProductFiles(inputs);
+            List<BatchResult> results = batch.run(productFiles);
+            if (summaryFile == null) {
+                summaryFile = new File(outputDir, "recalibration-summary.csv");
+            }
+            writeSummary(results, summaryFile);
+            int failed = 0;
+            for (BatchResult result : results) {
+                if (result.getStatus() == BatchResult.Status.FAILED) {
+                    failed++;
+                }
+            }
+            RecalibrationUtils.info("AATSR recalibration batch: " + results.size() + " products, " + failed +
+                                    " failed. Summary written to '" + summaryFile + "'.");
+            RecalibrationMetrics.getInstance().logSummary();
+            // the messages are written asynchronously
+            DiagnosticsChannel.getInstance().close();
+            System.exit(failed > 0 ? 1 : 0);
+        } catch (Exception e) {
+            DiagnosticsChannel.getInstance().close();
+            System.err.println("AATSR recalibration batch failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * This method recalibrates the given products
+     *
+     * @param productFiles - the AATSR L1b products
+     *
+     * @return the results, in the order of the products
+     *
+     * @throws IOException          if the output directory cannot be created or the drift table cannot be read
+     * @throws InterruptedException if the batch is interrupted
+     */
+    public List<BatchResult> run(List<File> productFiles) throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Failed to create output directory '" + outputDir + "'.");
+        }
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+
+        // parses the drift table once up front, all operator instances get it from the cache
+        final N1TriageScanner triageScanner = new N1TriageScanner(driftTableFile);
+
+        final Semaphore memoryBudget = new Semaphore(memoryBudgetMB, true);
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+            for (final File productFile : productFiles) {
+                futures.add(executor.submit(new Callable<BatchResult>() {
+                    @Override
+                    public BatchResult call() throws InterruptedException {
+                        if (isN1File(productFile)) {
+                            BatchResult result = triage(triageScanner.classify(productFile));
+                            if (result != null) {
+                                return result;
+                            }
+                        }
+                        if (N1_FORMAT.equals(formatName)) {
+                            // only a few records are in memory at any time
+                            return patchProduct(productFile);
+                        }
+                        return processProduct(productFile, memoryBudget);
+                    }
+                }));
+            }
+            List<BatchResult> results = new ArrayList<BatchResult>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    BatchResult result = new BatchResult(productFiles.get(i));
+                    result.setStatus(BatchResult.Status.FAILED, String.valueOf(e.getCause()));
+                    results.add(result);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * This method decides from the header triage whether a product can be skipped without opening it
+     *
+     * @param triage - the triage result
+     *
+     * @return the result for a skipped product, or null if the product shall be processed
+     */
+    private BatchResult triage(N1TriageScanner.Result triage) {
+        final N1TriageScanner.Decision decision = triage.getDecision();
+        if (decision == N1TriageScanner.Decision.SKIP ||
+            (decision == N1TriageScanner.Decision.PASS_THROUGH && !writeUnchanged)) {
+            BatchResult result = new BatchResult(triage.getFile());
+            result.setStatus(BatchResult.Status.SKIPPED, triage.getReason());
+            publishResult(result);
+            return result;
+        }
+        // invalid headers are left to the product reader, which gives the more specific error
+        return null;
+    }
+
+    private static void publishResult(BatchResult result) {
+        final String productName = result.getProductFile().getName();
+        final DiagnosticsChannel channel = DiagnosticsChannel.getInstance();
+        switch (result.getStatus()) {
+            case RECALIBRATED:
+                channel.publish(DiagnosticEvent.Type.TIMING, productName,
+                                String.format("recalibrated, read %d ms, wait %d ms, process %d ms, %.3f Mpixel/s",
+                                              result.getReadMillis(), result.getWaitMillis(),
+                                              result.getProcessMillis(),
+                                              result.getMegaPixelsPerSecond()));
+                break;
+            case SKIPPED:
+                channel.publish(DiagnosticEvent.Type.SKIPPED, productName, result.getMessage());
+                break;
+            default:
+                channel.publish(DiagnosticEvent.Type.FAILED, productName, result.getMessage());
+        }
+    }
+
+    private static boolean isN1File(File productFile) {
+        return productFile.getName().toLowerCase().endsWith(".n1");
+    }
+
+    /**
+     * This method estimates the memory needed for a product from its rasters, independent of the
+     * file format: the source rasters and the recalibrated copy, in MB
+     *
+     * @param product - the opened source product
+     *
+     * @return the number of permits of the memory budget, at least 1 and at most the whole budget
+     */
+    int getMemoryPermits(Product product) {
+        long bytes = 0;
+        final long pixels = (long) product.getSceneRasterWidth() * product.getSceneRasterHeight();
+        for (Band band : product.getBands()) {
+            bytes += pixels * ProductData.getElemSize(band.getDataType());
+        }
+        final long megaBytes = 2 * bytes / (1024 * 1024);
+        return (int) Math.max(1, Math.min(memoryBudgetMB, megaBytes));
+    }
+
+    /**
+     * This method recalibrates a single product. Errors are reported in the result.
+     *
+     * @param productFile  - the AATSR L1b product
+     * @param memoryBudget - the memory budget shared by all workers, in MB. Permits are only taken
+     *                     for products which are written, and are released before returning.
+     *
+     * @return the result
+     *
+     * @throws InterruptedException if interrupted while waiting for memory
+     */
+    BatchResult processProduct(File productFile, Semaphore memoryBudget) throws InterruptedException {
+        BatchResult result = new BatchResult(productFile);
+        Product sourceProduct = null;
+        Product targetProduct = null;
+        int permits = 0;
+        try {
+            long t0 = System.currentTimeMillis();
+            // opening reads only the header, the rasters are read while the target product is written
+            sourceProduct = ProductIO.readProduct(productFile);
+            if (sourceProduct == null) {
+                throw new IOException("No reader found.");
+            }
+            long t1 = System.currentTimeMillis();
+            result.setReadMillis(t1 - t0);
+            result.setSize(sourceProduct.getSceneRasterWidth(), sourceProduct.getSceneRasterHeight());
+
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            if (driftTableFile != null) {
+                parameters.put("useOwnDriftTable", Boolean.TRUE);
+                parameters.put("DRIFT_TABLE_FILE_PATH", driftTableFile);
+            }
+            // initialising the operator computes no tiles, the memory is needed for writing only
+            targetProduct = GPF.createProduct(OPERATOR_ALIAS, parameters, sourceProduct);
+            final String skipReason = getSkipReason(targetProduct);
+            long waitMillis = 0;
+            if (skipReason == null || (writeUnchanged &&
+                                       !skipReason.equals(RecalibrateAATSRReflectancesOp.SKIPPED_ALREADY_RECALIBRATED))) {
+                final int requiredPermits = getMemoryPermits(sourceProduct);
+                final long t2 = System.currentTimeMillis();
+                memoryBudget.acquire(requiredPermits);
+                permits = requiredPermits;
+                waitMillis = System.currentTimeMillis() - t2;
+                result.setWaitMillis(waitMillis);
+
+                File outputFile = new File(outputDir, getOutputFileName(productFile));
+                GPF.writeProduct(targetProduct, outputFile, formatName, false, ProgressMonitor.NULL);
+                result.setOutputFile(outputFile);
+            }
+            result.setProcessMillis(System.currentTimeMillis() - t1 - waitMillis);
+
+            if (skipReason == null) {
+                RecalibrationMetrics.getInstance().productRecalibrated();
+                result.setStatus(BatchResult.Status.RECALIBRATED, null);
+            } else {
+                result.setStatus(BatchResult.Status.SKIPPED, skipReason);
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            result.setStatus(BatchResult.Status.FAILED, e.getMessage());
+        } finally {
+            if (targetProduct != null) {
+                targetProduct.dispose();
+            }
+            if (sourceProduct != null) {
+                sourceProduct.dispose();
+            }
+            memoryBudget.release(permits);
+        }
+        // skipped products have been reported by the operator
+        if (result.getStatus() != BatchResult.Status.SKIPPED) {
+            publishResult(result);
+        }
+        return result;
+    }
+
+    /**
+     * This method recalibrates a copy of a single N1 file in place. Errors are reported in the result.
+     *
+     * @param productFile - the AATSR L1b N1 file
+     *
+     * @return the result
+     */
+    BatchResult patchProduct(File productFile) {
+        BatchResult result = new BatchResult(productFile);
+        try {
+            long t0 = System.currentTimeMillis();
+            if (!isN1File(productFile)) {
+                throw new IOException("Output format " + N1_FORMAT + " requires N1 input.");
+            }
+            final N1Header header = N1Header.read(productFile);
+            final Map<String, String> dsd = header.getDsd(N1RecalibrationPatcher.getMdsName(
+                    EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME));
+            if (dsd != null) {
+                result.setSize(N1RecalibrationPatcher.SCENE_WIDTH, (int) N1Header.parseLong(dsd, "NUM_DSR"));
+            }
+
+            File outputFile = new File(outputDir, getOutputFileName(productFile));
+            final String skipReason = new N1RecalibrationPatcher(driftTableFile).patch(productFile, outputFile);
+            if (skipReason == null) {
+                RecalibrationMetrics.getInstance().productRecalibrated();
+                result.setOutputFile(outputFile);
+                result.setStatus(BatchResult.Status.RECALIBRATED, null);
+            } else {
+                if (writeUnchanged &&
+                    !skipReason.equals(RecalibrateAATSRReflectancesOp.SKIPPED_ALREADY_RECALIBRATED)) {
+                    N1RecalibrationPatcher.copy(productFile, outputFile);
+                    result.setOutputFile(outputFile);
+                }
+                result.setStatus(BatchResult.Status.SKIPPED, skipReason);
+            }
+            result.setProcessMillis(System.currentTimeMillis() - t0);
+        } catch (Exception e) {
+            result.setStatus(BatchResult.Status.FAILED, e.getMessage());
+        }
+        publishResult(result);
+        return result;
+    }
+
+    private String getOutputFileName(File productFile) {
+        if (N1_FORMAT.equals(formatName)) {
+            return productFile.getName();
+        }
+        String name = productFile.getName();
+        final int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return DEFAULT_FORMAT.equals(formatName) ? name + ".dim" : name;
+    }
+
+    private static String getSkipReason(Product targetProduct) {
+        MetadataElement mph = targetProduct.getMetadataRoot().getElement("MPH");
+        return mph.getAttributeString(RecalibrateAATSRReflectancesOp.RECALIBRATION_SKIPPED, null);
+    }
+
+    /**
+     * This method collects the product files from the given inputs: product files, directories
+     * (all *.N1 and *.dim files) and list files (prefixed by '@', one product file per line).
+     *
+     * @param inputs - the inputs
+     *
+     * @return the product files
+     *
+     * @throws IOException if a list file cannot be read or an input does not exist
+     */
+    public static List<File> collectProductFiles(List<String> inputs) throws IOException {
+        List<File> productFiles = new ArrayList<File>();
+        for (String input : inputs) {
+            if (input.startsWith("@")) {
+                BufferedReader reader = new BufferedReader(new FileReader(input.substring(1)));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.length() > 0 && !line.startsWith("#")) {
+                            productFiles.add(new File(line));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } else {
+                File file = new File(input);
+                if (file.isDirectory()) {
+                    File[] files = file.listFiles();
+                    if (files != null) {
+                        Arrays.sort(files);
+                        for (File productFile : files) {
+                            final String name = productFile.getName().toLowerCase();
+                            if (productFile.isFile() && (name.endsWith(".n1") || name.endsWith(".dim"))) {
+                                productFiles.add(productFile);
+                            }
+                        }
+                    }
+                } else if (file.isFile()) {
+                    productFiles.add(file);
+                } else {
+                    throw new IOException("Input '" + input + "' does not exist.");
+                }
+            }
+        }
+        return productFiles;
+    }
+
+    /**
+     * This method writes the batch summary
+     *
+     * @param results     - the results
+     * @param summaryFile - the summary file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeSummary(List<BatchResult> results, File summaryFile) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(summaryFile));
+        try {
+            writer.println(BatchResult.CSV_HEADER);
+            for (BatchResult result : results) {
+                writer.println(result.toCsvLine());
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Failed to write summary '" + summaryFile + "'.");
+        }
+    }
+}
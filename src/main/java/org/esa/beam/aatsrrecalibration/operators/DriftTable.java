@@ -0,0 +1,132 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import java.util.Arrays;
+
+/**
+ * Object providing the drift data for the 4 channels. Entries are stored column-wise in
+ * primitive arrays of exactly the table length. Instances are immutable and are created
+ * with a {@link Builder}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DriftTable {
+
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    private final long[] time;
+    // drift[channel][entry], channels as in Recalibration.CHANNEL550 ... CHANNEL1600
+    private final double[][] drift;
+    private final boolean daily;
+
+    private DriftTable(long[] time, double[][] drift) {
+        this.time = time;
+        this.drift = drift;
+        // the bundled drift tables have one entry per day, which allows to compute the index of a given time directly
+        boolean daily = time.length > 0;
+        for (int i = 1; i < time.length; i++) {
+            if (time[i] - time[i - 1] != MILLIS_PER_DAY) {
+                daily = false;
+                break;
+            }
+        }
+        this.daily = daily;
+    }
+
+    public int getLength() {
+        return time.length;
+    }
+
+    /**
+     * @param index - the entry index
+     *
+     * @return the time of the entry in millis
+     */
+    public long getTime(int index) {
+        return time[index];
+    }
+
+    /**
+     * @param channel - the channel index ({@link Recalibration#CHANNEL550} ... {@link Recalibration#CHANNEL1600})
+     * @param index   - the entry index
+     *
+     * @return the drift of the channel at the entry
+     */
+    public double getDrift(int channel, int index) {
+        return drift[channel][index];
+    }
+
+    /**
+     * Finds the entry previous to the given time, i.e. the index i with time[i] <= t < time[i+1].
+     *
+     * @param t - time in millis
+     *
+     * @return the index, or -1 if the time is outside the table
+     */
+    public int getTimeIndex(long t) {
+        final int length = time.length;
+        if (length == 0 || t < time[0] || t >= time[length - 1]) {
+            return -1;
+        }
+        if (daily) {
+            return (int) ((t - time[0]) / MILLIS_PER_DAY);
+        }
+        // irregular (user) tables: first entry later than t
+        int low = 0;
+        int high = length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (time[mid] > t) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Collects the entries of a drift table. The storage grows as needed.
+     */
+    public static class Builder {
+
+        private long[] time;
+        private double[][] drift;
+        private int length;
+
+        public Builder() {
+            this(4096);
+        }
+
+        public Builder(int initialCapacity) {
+            initialCapacity = Math.max(initialCapacity, 16);
+            time = new long[initialCapacity];
+            drift = new double[4][initialCapacity];
+        }
+
+        public Builder add(long time, double drift560, double drift670, double drift870, double drift1600) {
+            if (length == this.time.length) {
+                final int capacity = 2 * length;
+                this.time = Arrays.copyOf(this.time, capacity);
+                for (int channel = 0; channel < drift.length; channel++) {
+                    drift[channel] = Arrays.copyOf(drift[channel], capacity);
+                }
+            }
+            this.time[length] = time;
+            drift[Recalibration.CHANNEL550][length] = drift560;
+            drift[Recalibration.CHANNEL670][length] = drift670;
+            drift[Recalibration.CHANNEL870][length] = drift870;
+            drift[Recalibration.CHANNEL1600][length] = drift1600;
+            length++;
+            return this;
+        }
+
+        public DriftTable build() {
+            final double[][] columns = new double[drift.length][];
+            for (int channel = 0; channel < drift.length; channel++) {
+                columns[channel] = Arrays.copyOf(drift[channel], length);
+            }
+            return new DriftTable(Arrays.copyOf(time, length), columns);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of parsed drift tables, so that operator instances in one graph or batch run
+ * share the tables instead of reading them again. Bundled tables are keyed by resource name, user
+ * tables by path, size and modification time, so that a changed file is read again.
+ * The least recently used table is evicted when the capacity is exceeded.
+ * <p/>
+ * A table which is requested by several threads at the same time is read only once.
+ * Cached tables must not be modified.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DriftTableCache {
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private static final DriftTableCache INSTANCE = new DriftTableCache(DEFAULT_CAPACITY);
+
+    private final Map<String, FutureTask<DriftTable>> tables;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public static DriftTableCache getInstance() {
+        return INSTANCE;
+    }
+
+    public DriftTableCache(final int capacity) {
+        tables = new LinkedHashMap<String, FutureTask<DriftTable>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<DriftTable>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param resourceName - name of a drift table bundled with this module
+     *
+     * @return the drift table
+     *
+     * @throws IOException if the table cannot be read
+     */
+    public DriftTable getResourceTable(final String resourceName) throws IOException {
+        return getTable("resource:" + resourceName, new Callable<DriftTable>() {
+            @Override
+            public DriftTable call() throws IOException {
+                return DriftTableIO.readResource(resourceName);
+            }
+        });
+    }
+
+    /**
+     * @param file - a drift table file in text or binary format
+     *
+     * @return the drift table
+     *
+     * @throws IOException if the table cannot be read
+     */
+    public DriftTable getFileTable(final File file) throws IOException {
+        final String key = "file:" + file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+        return getTable(key, new Callable<DriftTable>() {
+            @Override
+            public DriftTable call() throws IOException {
+                return DriftTableIO.readFile(file);
+            }
+        });
+    }
+
+    public int size() {
+        synchronized (tables) {
+            return tables.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (tables) {
+            tables.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private DriftTable getTable(String key, Callable<DriftTable> loader) throws IOException {
+        FutureTask<DriftTable> task;
+        boolean load = false;
+        synchronized (tables) {
+            task = tables.get(key);
+            if (task == null) {
+                task = new FutureTask<DriftTable>(loader);
+                tables.put(key, task);
+                load = true;
+            }
+        }
+        if (load) {
+            missCount.incrementAndGet();
+            final long t0 = System.nanoTime();
+            task.run();
+            RecalibrationMetrics.getInstance().driftTableLoaded(System.nanoTime() - t0);
+        } else {
+            hitCount.incrementAndGet();
+            RecalibrationMetrics.getInstance().driftTableCacheHit();
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading drift correction table.", e);
+        } catch (ExecutionException e) {
+            // do not cache failures
+            synchronized (tables) {
+                if (tables.get(key) == task) {
+                    tables.remove(key);
+                }
+            }
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+}
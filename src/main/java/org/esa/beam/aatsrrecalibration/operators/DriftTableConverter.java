@@ -0,0 +1,66 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Converts drift tables from text format into the binary format of {@link DriftTableIO}.
+ * The binary table is written next to the text table. Run during the build for the bundled tables.
+ * <p/>
+ * Usage: DriftTableConverter &lt;file or directory&gt;...
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DriftTableConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: DriftTableConverter <file or directory>...");
+            return;
+        }
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                File[] textFiles = file.listFiles();
+                if (textFiles != null) {
+                    for (File textFile : textFiles) {
+                        if (textFile.getName().endsWith(DriftTableIO.TEXT_EXTENSION)) {
+                            convert(textFile);
+                        }
+                    }
+                }
+            } else {
+                convert(file);
+            }
+        }
+    }
+
+    /**
+     * This method converts a drift table from text into binary format
+     *
+     * @param textFile - the text table
+     *
+     * @return the binary table file
+     *
+     * @throws IOException if the table cannot be read or written
+     */
+    public static File convert(File textFile) throws IOException {
+        final DriftTable driftTable;
+        final BufferedReader bufferedReader = new BufferedReader(new FileReader(textFile));
+        try {
+            driftTable = DriftTableIO.readText(bufferedReader);
+        } catch (NumberFormatException e) {
+            throw new IOException("Failed to read drift correction table '" + textFile + "': " + e.getMessage(), e);
+        } finally {
+            bufferedReader.close();
+        }
+        final File binaryFile = new File(textFile.getParentFile(), DriftTableIO.getBinaryFileName(textFile.getName()));
+        DriftTableIO.writeBinary(driftTable, binaryFile);
+        System.out.println("Converted drift correction table '" + textFile + "' (" + driftTable.getLength() +
+                           " entries) into '" + binaryFile + "'.");
+        return binaryFile;
+    }
+}
@@ -0,0 +1,283 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.esa.beam.aatsrrecalibration.util.TimeParser;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.StringTokenizer;
+
+/**
+ * Reading and writing of drift tables.
+ * <p/>
+ * Two formats are supported:
+ * - the text format of the AATSR_VIS_DRIFT_V00-*.DAT tables
+ * - a compact binary format: a 16 byte header (magic, version, number of entries, reserved),
+ * followed by an int column with the epoch day of each entry and four double columns
+ * with the drifts at 0.56, 0.66, 0.87 and 1.6um. All values are big endian.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DriftTableIO {
+
+    public static final String TEXT_EXTENSION = ".DAT";
+    public static final String BINARY_EXTENSION = ".bin";
+
+    private static final int TEXT_HEADER_LINES = 6;
+
+    private static final int BINARY_MAGIC = 0x41445254; // "ADRT"
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_HEADER_SIZE = 16;
+    private static final long MILLIS_PER_DAY = TimeParser.MILLIS_PER_DAY;
+
+    private DriftTableIO() {
+    }
+
+    /**
+     * @param fileName - name of a drift table file
+     *
+     * @return true if the file is in the binary format
+     */
+    public static boolean isBinary(String fileName) {
+        return fileName.endsWith(BINARY_EXTENSION);
+    }
+
+    /**
+     * @param textFileName - name of a text drift table file, e.g. AATSR_VIS_DRIFT_V00-17.DAT
+     *
+     * @return the name of the corresponding binary drift table file, e.g. AATSR_VIS_DRIFT_V00-17.bin
+     */
+    public static String getBinaryFileName(String textFileName) {
+        if (textFileName.endsWith(TEXT_EXTENSION)) {
+            textFileName = textFileName.substring(0, textFileName.length() - TEXT_EXTENSION.length());
+        }
+        return textFileName + BINARY_EXTENSION;
+    }
+
+    /**
+     * This method reads a drift table bundled with this module. The binary form of the table, which is
+     * created during the build, is preferred over the text table.
+     *
+     * @param resourceName - name of the text table resource, e.g. AATSR_VIS_DRIFT_V00-17.DAT
+     *
+     * @return the drift table
+     *
+     * @throws IOException           if the table cannot be read
+     * @throws NumberFormatException if an entry of a text table cannot be parsed
+     */
+    public static DriftTable readResource(String resourceName) throws IOException {
+        URL binaryUrl = DriftTableIO.class.getResource(getBinaryFileName(resourceName));
+        if (binaryUrl != null) {
+            return readBinary(binaryUrl);
+        }
+        InputStream inputStream = DriftTableIO.class.getResourceAsStream(resourceName);
+        if (inputStream == null) {
+            throw new IOException("Drift correction table '" + resourceName + "' not found.");
+        }
+        return readText(new BufferedReader(new InputStreamReader(inputStream)), true);
+    }
+
+    /**
+     * This method reads a drift table file in text or binary format, depending on the file extension.
+     *
+     * @param file - the file
+     *
+     * @return the drift table
+     *
+     * @throws IOException           if the table cannot be read
+     * @throws NumberFormatException if an entry of a text table cannot be parsed
+     */
+    public static DriftTable readFile(File file) throws IOException {
+        if (isBinary(file.getName())) {
+            return readBinary(file);
+        }
+        return readText(new BufferedReader(new FileReader(file)), true);
+    }
+
+    private static DriftTable readText(BufferedReader bufferedReader, boolean close) throws IOException {
+        try {
+            return readText(bufferedReader);
+        } finally {
+            if (close) {
+                bufferedReader.close();
+            }
+        }
+    }
+
+    /**
+     * This method reads a drift table in text format
+     *
+     * @param bufferedReader - the reader
+     *
+     * @return the drift table
+     *
+     * @throws IOException           if the table cannot be read
+     * @throws NumberFormatException if an entry cannot be parsed
+     */
+    public static DriftTable readText(BufferedReader bufferedReader) throws IOException {
+        DriftTable.Builder builder = new DriftTable.Builder();
+
+        // skip header lines
+        for (int i = 0; i < TEXT_HEADER_LINES; i++) {
+            bufferedReader.readLine();
+        }
+
+        StringTokenizer st;
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            line = line.substring(8); // skip index column
+            line = line.trim();
+            st = new StringTokenizer(line, "   ", false);
+            // date and time (2 tokens), then drifts at 560, 670, 870 and 1600nm
+            long time = 0;
+            if (st.hasMoreTokens()) {
+                time = TimeParser.parseMillis(st.nextToken() + " " + st.nextToken());
+            }
+            final double drift560 = st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0.0;
+            final double drift670 = st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0.0;
+            final double drift870 = st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0.0;
+            final double drift1600 = st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0.0;
+            builder.add(time, drift560, drift670, drift870, drift1600);
+        }
+        return builder.build();
+    }
+
+    /**
+     * This method reads a drift table in binary format. Tables located in the file system are memory-mapped.
+     *
+     * @param url - location of the table
+     *
+     * @return the drift table
+     *
+     * @throws IOException if the table cannot be read
+     */
+    public static DriftTable readBinary(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return readBinary(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+                // fall through to stream access
+            }
+        }
+        final InputStream inputStream = url.openStream();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16384];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return readBinary(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * This method reads a drift table in binary format from a memory-mapped file.
+     *
+     * @param file - the file
+     *
+     * @return the drift table
+     *
+     * @throws IOException if the table cannot be read
+     */
+    public static DriftTable readBinary(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            return readBinary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * This method reads a drift table in binary format
+     *
+     * @param buffer - the buffer holding the table
+     *
+     * @return the drift table
+     *
+     * @throws IOException if the buffer does not hold a valid table
+     */
+    public static DriftTable readBinary(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < BINARY_HEADER_SIZE || buffer.getInt(0) != BINARY_MAGIC) {
+            throw new IOException("Not a binary drift correction table.");
+        }
+        if (buffer.getInt(4) != BINARY_VERSION) {
+            throw new IOException("Unsupported binary drift correction table version " + buffer.getInt(4) + ".");
+        }
+        final int length = buffer.getInt(8);
+        if (length < 0 || (buffer.remaining() - BINARY_HEADER_SIZE) / (4 + 4 * 8) < length) {
+            throw new IOException("Invalid binary drift correction table length " + length + ".");
+        }
+
+        final int dayOffset = BINARY_HEADER_SIZE;
+        final int drift560Offset = dayOffset + 4 * length;
+        final int drift670Offset = drift560Offset + 8 * length;
+        final int drift870Offset = drift670Offset + 8 * length;
+        final int drift1600Offset = drift870Offset + 8 * length;
+
+        DriftTable.Builder builder = new DriftTable.Builder(length);
+        for (int i = 0; i < length; i++) {
+            builder.add(buffer.getInt(dayOffset + 4 * i) * MILLIS_PER_DAY,
+                        buffer.getDouble(drift560Offset + 8 * i),
+                        buffer.getDouble(drift670Offset + 8 * i),
+                        buffer.getDouble(drift870Offset + 8 * i),
+                        buffer.getDouble(drift1600Offset + 8 * i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * This method writes a drift table in binary format
+     *
+     * @param driftTable - the drift table, with all entries at 00:00:00
+     * @param file       - the target file
+     *
+     * @throws IOException if an entry is not at the start of a day or the file cannot be written
+     */
+    public static void writeBinary(DriftTable driftTable, File file) throws IOException {
+        final int length = driftTable.getLength();
+        for (int i = 0; i < length; i++) {
+            if (driftTable.getTime(i) % MILLIS_PER_DAY != 0) {
+                throw new IOException("Drift correction table entry " + i + " is not at the start of a day.");
+            }
+        }
+
+        final OutputStream outputStream = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(length);
+            out.writeInt(0);
+            for (int i = 0; i < length; i++) {
+                out.writeInt((int) (driftTable.getTime(i) / MILLIS_PER_DAY));
+            }
+            for (int channel = Recalibration.CHANNEL550; channel <= Recalibration.CHANNEL1600; channel++) {
+                for (int i = 0; i < length; i++) {
+                    out.writeDouble(driftTable.getDrift(channel, i));
+                }
+            }
+            out.flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -15,12 +15,19 @@
 package org.esa.beam.aatsrrecalibration.operators;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.vividsolutions.jts.geom.Geometry;
+import org.esa.beam.aatsrrecalibration.batch.N1Header;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticEvent;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticsChannel;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
 import org.esa.beam.framework.datamodel.MetadataElement;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
 import org.esa.beam.framework.gpf.Operator;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
@@ -29,10 +36,23 @@ import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.gpf.operators.standard.SubsetOp;
 import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.converters.JtsGeometryConverter;
 
+import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.awt.image.Raster;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Operator for recalibrating AATSR reflectances.
@@ -96,49 +116,439 @@ public class RecalibrateAATSRReflectancesOp extends Operator {
                label = "Recalibrate forward reflectance at 550nm")
     boolean recalibrateFward0550;
 
-    //    private static final String INVALID_EXPRESSION = "l1_flags.INVALID or l1_flags.LAND_OCEAN";
-    @SuppressWarnings("unused")
-    private static final String INVALID_EXPRESSION = "";  // TBD
+    @Parameter(description = "The pixel region to be recalibrated (x,y,width,height). For a range of rows, " +
+                             "give x=0 and the scene width. The whole scene if not given.",
+               label = "Pixel region")
+    private Rectangle region;
+
+    @Parameter(converter = JtsGeometryConverter.class,
+               description = "The geographical region to be recalibrated, in WKT format. " +
+                             "Overrides the pixel region.",
+               label = "Geographical region")
+    private Geometry geoRegion;
+
+    @Parameter(description = "The reflectance and brightness temperature bands to be written. " +
+                             "All bands if not given, flag bands are always written.",
+               label = "Source bands")
+    private String[] sourceBandNames;
+
+    @Parameter(description = "Drift table versions (e.g. V00-13) or files for comparison. For each of them, " +
+                             "a set of recalibrated reflectance bands is added, with the version as suffix.",
+               label = "Drift tables for comparison")
+    private String[] comparisonDriftTables;
+
+    @Parameter(defaultValue = "false",
+               description = "Add the differences between the comparison bands and the recalibrated bands " +
+                             "as virtual bands.",
+               label = "Write difference bands")
+    private boolean writeDifferenceBands;
+
+    @Parameter(defaultValue = "false",
+               description = "Write the recalibrated reflectances as virtual bands over the original reflectances " +
+                             "instead of computing them. The recalibration coefficients are in the metadata.",
+               label = "Recalibrated reflectances as virtual bands")
+    private boolean writeVirtualBands;
+
+    @Parameter(defaultValue = "0",
+               description = "Width of the target tiles in pixels, 0 for the full scene width.",
+               label = "Tile width")
+    private int tileWidth;
+
+    @Parameter(defaultValue = "0",
+               description = "Height of the target tiles in rows, 0 to choose it from the scene size and " +
+                             "the available heap.",
+               label = "Tile height")
+    private int tileHeight;
 
     public static final String CONFID_NADIR_FLAGS = "confid_flags_nadir";
     public static final String CONFID_FWARD_FLAGS = "confid_flags_fward";
+    // confid flags of pixels without measurement: BLANKING, SCAN_ABSENT, ABSENT, NOT_DECOMPR, UNFILLED
+    public static final int INVALID_CONFID_FLAGS = 0x001 | 0x004 | 0x008 | 0x010 | 0x200;
     public static final String CLOUD_NADIR_FLAGS = "cloud_flags_nadir";
     public static final String CLOUD_FWARD_FLAGS = "cloud_flags_fward";
 
-    private static final double SECONDS_PER_DAY = 86400;
+    // MPH attribute giving the reason why a product was passed through unchanged
+    public static final String RECALIBRATION_SKIPPED = "RECALIBRATION_SKIPPED";
+    public static final String SKIPPED_ALREADY_RECALIBRATED = "already recalibrated";
+    public static final String SKIPPED_OUT_OF_RANGE = "acquisition time outside drift table";
+    public static final String SKIPPED_NO_BAND_SELECTED = "no band selected";
+
+    // limits of the automatic tile height; tiles of a stack take at most this fraction of the heap per processor
+    static final int MIN_TILE_HEIGHT = 32;
+    static final int MAX_TILE_HEIGHT = 1024;
+    private static final int TILE_HEAP_FRACTION = 64;
+
+    private static final String DRIFT_TABLE_NAME_PREFIX = "AATSR_VIS_DRIFT_";
+    // metadata element holding the recalibration coefficients of each band
+    public static final String RECALIBRATION_METADATA = "RECALIBRATION";
+    // suffix of the original reflectance bands in virtual band mode
+    public static final String ORIGINAL_BAND_SUFFIX = "_original";
 
-    private String envisatLaunch = "01-MAR-2002 00:00:00";
     private String sensingStart;
 
     private Recalibration recalibration;
     private boolean isRecalibrated;
     private boolean acquisitionTimeInRange;
+    private RecalibrationContext context;
+    // drift table label -> context, for the comparison bands
+    private Map<String, RecalibrationContext> comparisonContexts;
+    // target band name -> kernel and source band name, for all bands computed by this operator
+    private Map<String, RecalibrationKernel> bandKernels;
+    private Map<String, String> bandSources;
+    // target band name -> raw sample lookup table, for bands stored as scaled 16 bit integers
+    private Map<String, short[]> bandLookupTables;
+    private Product subsetProduct;
+    private final AtomicBoolean failurePublished = new AtomicBoolean();
 
     @Override
     public void initialize() throws OperatorException {
 
+        final File sourceFile = sourceProduct.getFileLocation();
+        if (region != null || geoRegion != null || (sourceBandNames != null && sourceBandNames.length > 0)) {
+            // all further steps only see the subset, so only the required source rasters are read
+            subsetProduct = createSubset();
+            sourceProduct = subsetProduct;
+        }
+
         recalibration = new Recalibration(useOwnDriftTable, userDriftTablePath);
 
-        if (sourceProduct != null) {
-            // todo: check if a preferred tile size should be set...
-            // sourceProduct.setPreferredTileSize(16, 16);
+        MetadataElement mphSource = sourceProduct.getMetadataRoot().getElement("MPH");
+        isRecalibrated = (mphSource.getAttribute("RECALIBRATED") != null &&
+                          mphSource.getAttributeString("RECALIBRATED") != null &&
+                          mphSource.getAttributeString("RECALIBRATED").equals("YES"));
+        if (!isRecalibrated) {
+            isRecalibrated = isRecalibratedN1File(sourceFile);
+        }
 
-            createTargetProduct();
+        sensingStart = mphSource.getAttribute("SENSING_START").getData().getElemString().substring(0, 20);
+
+        // the context must be known before the target product is created, since all bands
+        // without a kernel just reference the source images
+        String skipReason = null;
+        if (isRecalibrated) {
+            // nothing to do, not even the drift table is needed
+            skipReason = SKIPPED_ALREADY_RECALIBRATED;
+        } else {
+            try {
+                recalibration.readDriftTable();
+            } catch (Exception e) {
+                throw new OperatorException("Failed to load aux data:\n" + e.getMessage());
+            }
+            acquisitionTimeInRange = recalibration.checkAcquisitionTimeRange(sensingStart);
+            if (!acquisitionTimeInRange) {
+                skipReason = SKIPPED_OUT_OF_RANGE;
+            } else {
+                context = createContext();
+                if (context.getKernels().isEmpty()) {
+                    skipReason = SKIPPED_NO_BAND_SELECTED;
+                } else {
+                    comparisonContexts = createComparisonContexts();
+                }
+            }
         }
 
+        createTargetProduct();
+        createLookupTables();
+        // AATSR L1b products are stored record by record, so full-width strips are read sequentially
+        targetProduct.setPreferredTileSize(getPreferredTileSize(
+                targetProduct.getSceneRasterWidth(), targetProduct.getSceneRasterHeight(), bandKernels.size(),
+                Runtime.getRuntime().maxMemory(), Runtime.getRuntime().availableProcessors(),
+                tileWidth, tileHeight));
+
+        final RecalibrationMetrics metrics = RecalibrationMetrics.getInstance();
+        if (skipReason == null) {
+            int copiedBandCount = 0;
+            for (Band band : targetProduct.getBands()) {
+                if (band.isSourceImageSet()) {
+                    copiedBandCount++;
+                }
+            }
+            // the target product may never be written, so this is what is planned, not done
+            metrics.productPlanned((long) targetProduct.getSceneRasterWidth() *
+                                   targetProduct.getSceneRasterHeight() * copiedBandCount);
+        } else {
+            metrics.productSkipped(skipReason);
+            DiagnosticsChannel.getInstance().publish(DiagnosticEvent.Type.SKIPPED, sourceProduct.getName(), skipReason);
+        }
+
+        MetadataElement mph = targetProduct.getMetadataRoot().getElement("MPH");
+        if (skipReason == null) {
+            // flag target product as 'RECALIBRATED' in metadata
+            mph.setAttributeString("RECALIBRATED", "YES");
+        } else {
+            // all bands reference the source images, no pixel is processed
+            mph.setAttributeString(RECALIBRATION_SKIPPED, skipReason);
+        }
+    }
+
+    /**
+     * This method resolves everything the recalibration depends on, including the kernels for all
+     * selected reflectance bands. Acquisition time, channel and correction regime are fixed for a
+     * product, so this is done once and the result is shared by all tiles.
+     *
+     * @return the recalibration context
+     */
+    private RecalibrationContext createContext() {
+        String vc1Filename = sourceProduct.getMetadataRoot().getElement(
+                "DSD").getElement("DSD.31").getAttribute("FILE_NAME")
+                .getData().getElemString();
+        String gc1Filename = sourceProduct.getMetadataRoot().getElement(
+                "DSD").getElement("DSD.32").getAttribute("FILE_NAME")
+                .getData().getElemString();
+
+        Map<String, Integer> bandChannels = new HashMap<String, Integer>();
+        for (Band band : sourceProduct.getBands()) {
+            if (isTargetBandSelected(band) && isTargetBandValid(band)) {
+                bandChannels.put(band.getName(), getChannelIndex(band));
+            }
+        }
+        return new RecalibrationContext(recalibration, sensingStart, vc1Filename, gc1Filename, bandChannels);
+    }
+
+    /**
+     * This method creates a subset of the source product from the region, geographical region
+     * and source band parameters. Geocoding, tie point grids and metadata are adjusted by the
+     * product subset.
+     *
+     * @return the subset
+     */
+    private Product createSubset() {
+        final Rectangle sceneRectangle = new Rectangle(sourceProduct.getSceneRasterWidth(),
+                                                       sourceProduct.getSceneRasterHeight());
+        Rectangle subsetRegion = sceneRectangle;
+        if (geoRegion != null) {
+            subsetRegion = SubsetOp.computePixelRegion(sourceProduct, geoRegion, 0);
+        } else if (region != null) {
+            subsetRegion = region.intersection(sceneRectangle);
+        }
+        if (subsetRegion == null || subsetRegion.isEmpty()) {
+            throw new OperatorException("The subset region does not intersect the scene.");
+        }
+
+        ProductSubsetDef subsetDef = new ProductSubsetDef();
+        subsetDef.setRegion(subsetRegion);
+        if (sourceBandNames != null && sourceBandNames.length > 0) {
+            for (String bandName : sourceBandNames) {
+                if (!sourceProduct.containsBand(bandName)) {
+                    throw new OperatorException("Source band '" + bandName + "' not found.");
+                }
+            }
+            subsetDef.addNodeNames(sourceBandNames);
+            subsetDef.addNodeNames(new String[]{CONFID_NADIR_FLAGS, CONFID_FWARD_FLAGS,
+                    CLOUD_NADIR_FLAGS, CLOUD_FWARD_FLAGS});
+            subsetDef.addNodeNames(sourceProduct.getTiePointGridNames());
+        }
         try {
-            recalibration.readDriftTable();
-        } catch (Exception e) {
-            throw new OperatorException("Failed to load aux data:\n" + e.getMessage());
+            return sourceProduct.createSubset(subsetDef, sourceProduct.getName(), sourceProduct.getDescription());
+        } catch (IOException e) {
+            throw new OperatorException("Failed to create subset:\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method sets up a recalibration context for each drift table to compare with. Tables which
+     * do not cover the acquisition time are left out.
+     *
+     * @return the contexts, by drift table label
+     */
+    private Map<String, RecalibrationContext> createComparisonContexts() {
+        Map<String, RecalibrationContext> contexts = new LinkedHashMap<String, RecalibrationContext>();
+        if (comparisonDriftTables == null) {
+            return contexts;
         }
+        final Map<String, Integer> bandChannels = new HashMap<String, Integer>();
+        for (String bandName : context.getKernels().keySet()) {
+            bandChannels.put(bandName, getChannelIndex(sourceProduct.getBand(bandName)));
+        }
+        for (String driftTableName : comparisonDriftTables) {
+            final Recalibration comparison;
+            try {
+                comparison = new Recalibration(getComparisonDriftTable(driftTableName));
+            } catch (IOException e) {
+                throw new OperatorException("Failed to load drift correction table '" + driftTableName + "':\n" +
+                                            e.getMessage(), e);
+            }
+            if (comparison.checkAcquisitionTimeRange(sensingStart)) {
+                contexts.put(getDriftTableLabel(driftTableName),
+                             new RecalibrationContext(comparison, sensingStart, context.getVc1Filename(),
+                                                      context.getGc1Filename(), bandChannels));
+            }
+        }
+        return contexts;
+    }
+
+    /**
+     * @param driftTableName - a bundled drift table version (e.g. V00-13), a bundled table name
+     *                       (e.g. AATSR_VIS_DRIFT_V00-13.DAT) or a drift table file
+     *
+     * @return the drift table, from the cache
+     *
+     * @throws IOException if the table cannot be read
+     */
+    static DriftTable getComparisonDriftTable(String driftTableName) throws IOException {
+        final File file = new File(driftTableName);
+        if (file.isFile()) {
+            return DriftTableCache.getInstance().getFileTable(file);
+        }
+        final String resourceName = driftTableName.startsWith(DRIFT_TABLE_NAME_PREFIX) ?
+                                    driftTableName : DRIFT_TABLE_NAME_PREFIX + driftTableName + ".DAT";
+        return DriftTableCache.getInstance().getResourceTable(resourceName);
+    }
 
-        sensingStart = sourceProduct.getMetadataRoot()
-                .getElement("MPH").getAttribute("SENSING_START").getData().getElemString().substring(0, 20);
-        acquisitionTimeInRange = recalibration.checkAcquisitionTimeRange(sensingStart);
+    /**
+     * @param driftTableName - the drift table as given in the comparison parameter
+     *
+     * @return the band name suffix for the drift table, e.g. V00_13
+     */
+    static String getDriftTableLabel(String driftTableName) {
+        String label = new File(driftTableName).getName();
+        if (label.startsWith(DRIFT_TABLE_NAME_PREFIX)) {
+            label = label.substring(DRIFT_TABLE_NAME_PREFIX.length());
+        }
+        final int dot = label.lastIndexOf('.');
+        if (dot > 0) {
+            label = label.substring(0, dot);
+        }
+        // band names are used in expressions
+        return label.replaceAll("[^A-Za-z0-9]", "_");
     }
 
     /**
-     * This method creates the target product
+     * This method adds a recalibrated band for each recalibrated band and each comparison drift table,
+     * and the difference bands if requested
+     */
+    private void addComparisonBands() {
+        for (Map.Entry<String, RecalibrationContext> entry : comparisonContexts.entrySet()) {
+            for (Band band : sourceProduct.getBands()) {
+                final RecalibrationKernel kernel = entry.getValue().getKernel(band.getName());
+                if (kernel == null) {
+                    continue;
+                }
+                final String bandName = band.getName() + "_" + entry.getKey();
+                Band comparisonBand;
+                if (writeVirtualBands) {
+                    comparisonBand = addVirtualBand(band, bandName, kernel);
+                } else {
+                    comparisonBand = ProductUtils.copyBand(band.getName(), sourceProduct, bandName,
+                                                           targetProduct, false);
+                    bandKernels.put(bandName, kernel);
+                    bandSources.put(bandName, band.getName());
+                }
+                comparisonBand.setDescription(band.getDescription() + ", drift table " + entry.getKey());
+
+                if (writeDifferenceBands) {
+                    VirtualBand differenceBand = new VirtualBand(bandName + "_diff", ProductData.TYPE_FLOAT32,
+                                                                 targetProduct.getSceneRasterWidth(),
+                                                                 targetProduct.getSceneRasterHeight(),
+                                                                 bandName + " - " + band.getName());
+                    differenceBand.setUnit(band.getUnit());
+                    differenceBand.setDescription("Drift table " + entry.getKey() + " minus the recalibration");
+                    targetProduct.addBand(differenceBand);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method adds a recalibrated reflectance band as virtual band over the original reflectance band.
+     * As in the computed bands, negative reflectances (exception codes), pixels flagged as not measured in
+     * the confid flags and no-data pixels are passed through unchanged. References to the reflectance
+     * band in its valid pixel expression are redirected to the original band.
+     *
+     * @param sourceBand - the source reflectance band
+     * @param bandName   - the name of the virtual band
+     * @param kernel     - the recalibration kernel
+     *
+     * @return the virtual band
+     */
+    private Band addVirtualBand(Band sourceBand, String bandName, RecalibrationKernel kernel) {
+        final String originalBandName = sourceBand.getName() + ORIGINAL_BAND_SUFFIX;
+        VirtualBand virtualBand = new VirtualBand(bandName, ProductData.TYPE_FLOAT32,
+                                                  targetProduct.getSceneRasterWidth(),
+                                                  targetProduct.getSceneRasterHeight(),
+                                                  getVirtualBandExpression(sourceBand, kernel));
+        virtualBand.setUnit(sourceBand.getUnit());
+        virtualBand.setDescription(sourceBand.getDescription());
+        virtualBand.setValidPixelExpression(renameSymbol(sourceBand.getValidPixelExpression(),
+                                                         sourceBand.getName(), originalBandName));
+        virtualBand.setNoDataValueUsed(sourceBand.isNoDataValueUsed());
+        virtualBand.setNoDataValue(sourceBand.getGeophysicalNoDataValue());
+        ProductUtils.copySpectralBandProperties(sourceBand, virtualBand);
+        targetProduct.addBand(virtualBand);
+        return virtualBand;
+    }
+
+    /**
+     * This method provides the expression of a recalibrated reflectance band over the original band
+     *
+     * @param sourceBand - the source reflectance band
+     * @param kernel     - the recalibration kernel
+     *
+     * @return the band maths expression
+     */
+    private String getVirtualBandExpression(Band sourceBand, RecalibrationKernel kernel) {
+        final String originalBandName = sourceBand.getName() + ORIGINAL_BAND_SUFFIX;
+        StringBuilder passThrough = new StringBuilder(originalBandName).append(" < 0");
+        final String flagBandName = getConfidFlagBandName(sourceBand.getName());
+        if (sourceProduct.containsBand(flagBandName)) {
+            passThrough.append(" || (").append(flagBandName).append(" & ")
+                    .append(INVALID_CONFID_FLAGS).append(") != 0");
+        }
+        if (sourceBand.isNoDataValueUsed() && sourceBand.getGeophysicalNoDataValue() >= 0.0) {
+            passThrough.append(" || ").append(originalBandName).append(" == ")
+                    .append(sourceBand.getGeophysicalNoDataValue());
+        }
+        return "(" + passThrough + ") ? " + originalBandName + " : " + kernel.toExpression(originalBandName);
+    }
+
+    /**
+     * This method replaces a band name in an expression by another one
+     *
+     * @param expression - the expression, or null
+     * @param name       - the band name
+     * @param newName    - the new band name
+     *
+     * @return the expression with all references to the band renamed
+     */
+    static String renameSymbol(String expression, String name, String newName) {
+        if (expression == null) {
+            return null;
+        }
+        return expression.replaceAll("\\b" + Pattern.quote(name) + "\\b", Matcher.quoteReplacement(newName));
+    }
+
+    /**
+     * This method stores the recalibration of each band in the target metadata: gain, polynomial
+     * coefficients (1.6um nonlinearity correction only) and the band maths expression
+     */
+    private void addRecalibrationMetadata() {
+        MetadataElement recalibrationElement = new MetadataElement(RECALIBRATION_METADATA);
+        recalibrationElement.setAttributeString("DRIFT_TABLE", useOwnDriftTable && userDriftTablePath != null ?
+                                                               userDriftTablePath.getName() :
+                                                               Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME);
+        recalibrationElement.setAttributeString("SENSING_START", sensingStart);
+        recalibrationElement.setAttributeInt("REMOVE_DRIFT_CORRECTION_INDEX", context.getRemoveDriftCorrectionIndex());
+        for (Band band : sourceProduct.getBands()) {
+            final RecalibrationKernel kernel = context.getKernel(band.getName());
+            if (kernel != null) {
+                MetadataElement bandElement = new MetadataElement(band.getName());
+                bandElement.setAttributeDouble("GAIN", kernel.getGain());
+                if (!kernel.isLinear()) {
+                    bandElement.addAttribute(new MetadataAttribute("COEFFICIENTS",
+                                                                   ProductData.createInstance(kernel.getCoefficients()),
+                                                                   true));
+                }
+                bandElement.setAttributeString("EXPRESSION", kernel.toExpression(band.getName()));
+                recalibrationElement.addElement(bandElement);
+            }
+        }
+        targetProduct.getMetadataRoot().addElement(recalibrationElement);
+    }
+
+    /**
+     * This method creates the target product. Only the bands to be recalibrated are computed by
+     * this operator; brightness temperatures, flags and reflectances which shall not be recalibrated
+     * reference the source band images.
      */
     private void createTargetProduct() {
         String productType = sourceProduct.getProductType();
@@ -147,55 +557,123 @@ public class RecalibrateAATSRReflectancesOp extends Operator {
         int sceneHeight = sourceProduct.getSceneRasterHeight();
 
         targetProduct = new Product(productName, productType, sceneWidth, sceneHeight);
+        bandKernels = new HashMap<String, RecalibrationKernel>();
+        bandSources = new HashMap<String, String>();
 
         // loop over bands and create them
         for (Band band : sourceProduct.getBands()) {
             if (!band.isFlagBand()) {
-                ProductUtils.copyBand(band.getName(), sourceProduct, targetProduct);
+                final RecalibrationKernel kernel = context != null ? context.getKernel(band.getName()) : null;
+                if (kernel != null && writeVirtualBands) {
+                    final String originalBandName = band.getName() + ORIGINAL_BAND_SUFFIX;
+                    Band originalBand = ProductUtils.copyBand(band.getName(), sourceProduct, originalBandName,
+                                                              targetProduct, true);
+                    originalBand.setValidPixelExpression(renameSymbol(band.getValidPixelExpression(),
+                                                                      band.getName(), originalBandName));
+                    addVirtualBand(band, band.getName(), kernel);
+                } else {
+                    ProductUtils.copyBand(band.getName(), sourceProduct, targetProduct, kernel == null);
+                    if (kernel != null) {
+                        bandKernels.put(band.getName(), kernel);
+                        bandSources.put(band.getName(), band.getName());
+                    }
+                }
             }
         }
+        if (comparisonContexts != null) {
+            addComparisonBands();
+        }
         ProductUtils.copyTiePointGrids(sourceProduct, targetProduct);
         ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
         ProductUtils.copyMetadata(sourceProduct, targetProduct);
+        if (context != null && !context.getKernels().isEmpty()) {
+            addRecalibrationMetadata();
+        }
         targetProduct.setStartTime(sourceProduct.getStartTime());
         targetProduct.setEndTime(sourceProduct.getEndTime());
         setFlagBands();
         ProductUtils.copyMasks(sourceProduct, targetProduct);
+    }
 
-        MetadataElement mphSource = sourceProduct.getMetadataRoot().getElement("MPH");
-        isRecalibrated = (mphSource.getAttribute("RECALIBRATED") != null &&
-                          mphSource.getAttributeString("RECALIBRATED") != null &&
-                          mphSource.getAttributeString("RECALIBRATED").equals("YES"));
+    /**
+     * This method creates the raw sample lookup tables of all computed bands for which both source and
+     * target are stored as scaled 16 bit integers. The tables are created once per product and only
+     * read by the tile threads. The no-data value of the source is mapped to the one of the target, and
+     * the negative exception codes of the L1b reflectances are kept.
+     */
+    private void createLookupTables() {
+        bandLookupTables = new HashMap<String, short[]>();
+        for (Map.Entry<String, RecalibrationKernel> entry : bandKernels.entrySet()) {
+            final Band sourceBand = sourceProduct.getBand(bandSources.get(entry.getKey()));
+            final Band targetBand = targetProduct.getBand(entry.getKey());
+            if (isRawInt16(sourceBand) && isRawInt16(targetBand)) {
+                final short[] lookupTable = entry.getValue().toLookupTable(
+                        sourceBand.getScalingFactor(), sourceBand.getScalingOffset(),
+                        targetBand.getScalingFactor(), targetBand.getScalingOffset());
+                for (int raw = Short.MIN_VALUE; raw < 0; raw++) {
+                    lookupTable[raw & 0xffff] = (short) raw;
+                }
+                if (sourceBand.isNoDataValueUsed()) {
+                    lookupTable[((int) sourceBand.getNoDataValue()) & 0xffff] =
+                            (short) targetBand.getNoDataValue();
+                }
+                bandLookupTables.put(entry.getKey(), lookupTable);
+            }
+        }
+    }
 
-//        BandArithmeticOp bandArithmeticOp =
-//            BandArithmeticOp.createBooleanExpressionBand(INVALID_EXPRESSION, sourceProduct);
-//        Band invalidBand = bandArithmeticOp.getTargetProduct().getBandAt(0);
+    /**
+     * This method determines the preferred tile size of the target product. Unless given, tiles span the
+     * full scene width, and their height is chosen such that the tile stacks of all processors, with
+     * source and target samples of each computed band and the confid flags of both views, take at most
+     * 1/{@value #TILE_HEAP_FRACTION} of the heap. The height is a multiple of {@value #MIN_TILE_HEIGHT}
+     * rows and at most {@value #MAX_TILE_HEIGHT} rows.
+     *
+     * @param sceneWidth     - the scene width
+     * @param sceneHeight    - the scene height
+     * @param bandCount      - the number of computed bands
+     * @param maxMemory      - the maximum heap size in bytes
+     * @param processorCount - the number of processors computing tiles in parallel
+     * @param tileWidth      - the requested tile width, or 0
+     * @param tileHeight     - the requested tile height, or 0
+     *
+     * @return the tile size
+     */
+    static Dimension getPreferredTileSize(int sceneWidth, int sceneHeight, int bandCount, long maxMemory,
+                                          int processorCount, int tileWidth, int tileHeight) {
+        final int width = tileWidth > 0 ? Math.min(tileWidth, sceneWidth) : sceneWidth;
+        int height;
+        if (tileHeight > 0) {
+            height = tileHeight;
+        } else {
+            // int16 source and target sample per computed band, int16 confid flags of both views
+            final long bytesPerRow = (long) width * (4L * Math.max(bandCount, 1) + 4L);
+            final long budget = maxMemory / TILE_HEAP_FRACTION / Math.max(processorCount, 1);
+            final long rows = budget / bytesPerRow;
+            height = (int) Math.max(MIN_TILE_HEIGHT, Math.min(MAX_TILE_HEIGHT, rows));
+            height -= height % MIN_TILE_HEIGHT;
+        }
+        return new Dimension(width, Math.max(1, Math.min(height, sceneHeight)));
     }
 
     /**
      * This method sets up the flag bands for the target product
      */
     private void setFlagBands() {
-        Band confidFlagNadirBand = targetProduct.addBand(CONFID_NADIR_FLAGS, ProductData.TYPE_INT16);
-        Band confidFlagFwardBand = targetProduct.addBand(CONFID_FWARD_FLAGS, ProductData.TYPE_INT16);
-        Band cloudFlagNadirBand = targetProduct.addBand(CLOUD_NADIR_FLAGS, ProductData.TYPE_INT16);
-        Band cloudFlagFwardBand = targetProduct.addBand(CLOUD_FWARD_FLAGS, ProductData.TYPE_INT16);
-
-        FlagCoding confidNadirFlagCoding = sourceProduct.getFlagCodingGroup().get(CONFID_NADIR_FLAGS);
-        ProductUtils.copyFlagCoding(confidNadirFlagCoding, targetProduct);
-        confidFlagNadirBand.setSampleCoding(confidNadirFlagCoding);
-
-        FlagCoding confidFwardFlagCoding = sourceProduct.getFlagCodingGroup().get(CONFID_FWARD_FLAGS);
-        ProductUtils.copyFlagCoding(confidFwardFlagCoding, targetProduct);
-        confidFlagFwardBand.setSampleCoding(confidFwardFlagCoding);
-
-        FlagCoding cloudNadirFlagCoding = sourceProduct.getFlagCodingGroup().get(CLOUD_NADIR_FLAGS);
-        ProductUtils.copyFlagCoding(cloudNadirFlagCoding, targetProduct);
-        cloudFlagNadirBand.setSampleCoding(cloudNadirFlagCoding);
-
-        FlagCoding cloudFwardFlagCoding = sourceProduct.getFlagCodingGroup().get(CLOUD_FWARD_FLAGS);
-        ProductUtils.copyFlagCoding(cloudFwardFlagCoding, targetProduct);
-        cloudFlagFwardBand.setSampleCoding(cloudFwardFlagCoding);
+        setFlagBand(CONFID_NADIR_FLAGS);
+        setFlagBand(CONFID_FWARD_FLAGS);
+        setFlagBand(CLOUD_NADIR_FLAGS);
+        setFlagBand(CLOUD_FWARD_FLAGS);
+    }
+
+    private void setFlagBand(String flagBandName) {
+        if (!sourceProduct.containsBand(flagBandName)) {
+            return;
+        }
+        Band flagBand = ProductUtils.copyBand(flagBandName, sourceProduct, targetProduct, true);
+        FlagCoding flagCoding = sourceProduct.getFlagCodingGroup().get(flagBandName);
+        ProductUtils.copyFlagCoding(flagCoding, targetProduct);
+        flagBand.setSampleCoding(targetProduct.getFlagCodingGroup().get(flagBandName));
     }
 
     private static boolean isTargetBandValid(Band targetBand) {
@@ -251,102 +729,91 @@ public class RecalibrateAATSRReflectancesOp extends Operator {
         return channelIndex;
     }
 
+    /**
+     * This method computes the recalibrated bands of a tile rectangle together, row by row. The confid
+     * flags of each view are read first: if no pixel of a view was measured in the rectangle, the
+     * reflectances of that view are copied from the source images, without source tiles and without
+     * processing the rows.
+     *
+     * @param targetTiles     - the target tiles of the computed bands
+     * @param targetRectangle - the tile rectangle
+     * @param pm              - the progress monitor
+     *
+     * @throws OperatorException if the computation fails
+     */
     @Override
-    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+    public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm)
+            throws OperatorException {
 
-        Rectangle rectangle = targetTile.getRectangle();
-
-        pm.beginTask("Processing frame...", rectangle.height);
+        pm.beginTask("Processing frame...", targetRectangle.height);
         try {
-            Tile sourceTile = getSourceTile(sourceProduct.getBand(targetBand.getName()), rectangle);
-            if (targetBand.isFlagBand()) {
-                for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
-                    for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
-                        if (pm.isCanceled()) {
-                            break;
-                        }
-                        targetTile.setSample(x, y, sourceTile.getSampleInt(x, y));
-                    }
-                    pm.worked(1);
+            // set up all bands once, then process them together row by row
+            final long t0 = System.nanoTime();
+            final List<BandTile> bandTiles = new ArrayList<BandTile>(targetTiles.size());
+            final List<String> bandNames = new ArrayList<String>(targetTiles.size());
+            // comparison bands share the source tile with the recalibrated band
+            final Map<String, Tile> sourceTiles = new HashMap<String, Tile>();
+            // the bands of one view share the invalid pixels
+            final Map<String, InvalidPixels> invalidPixelsByView = new HashMap<String, InvalidPixels>();
+            int skippedTileCount = 0;
+            for (Map.Entry<Band, Tile> entry : targetTiles.entrySet()) {
+                final Band targetBand = entry.getKey();
+                final String sourceBandName = bandSources.get(targetBand.getName());
+                final InvalidPixels invalidPixels = getInvalidPixels(invalidPixelsByView, sourceBandName,
+                                                                     targetRectangle);
+                if (invalidPixels != null && invalidPixels.isAllInvalid()) {
+                    // nothing was measured, e.g. outside the forward view swath
+                    entry.getValue().setRawSamples(getSourceData(sourceProduct.getBand(sourceBandName),
+                                                                 targetRectangle));
+                    skippedTileCount++;
+                    continue;
                 }
-            } else if (!isRecalibrated && acquisitionTimeInRange && isTargetBandSelected(
-                    targetBand) && isTargetBandValid(targetBand)) {
-                // apply recalibration
-
-//				Tile isInvalid = getSourceTile(invalidBand, rectangle, pm); // TODO if necessary
-
-                String vc1Filename = sourceProduct.getMetadataRoot().getElement(
-                        "DSD").getElement("DSD.31").getAttribute("FILE_NAME")
-                        .getData().getElemString();
-                String gc1Filename = sourceProduct.getMetadataRoot().getElement(
-                        "DSD").getElement("DSD.32").getAttribute("FILE_NAME")
-                        .getData().getElemString();
-
-                final int ati = recalibration.getAcquisitionTimeIndex(sensingStart);
-                final double atiPrev = recalibration.getAcquisitionTimeIndexPrevious(ati);
-                final double atiNext = recalibration.getAcquisitionTimeIndexNext(ati);
-                final double sensingStartMillis = recalibration.getTimeInMillis(sensingStart);
-                int removeDriftCorrIndex = recalibration.getRemoveDriftCorrectionIndex(vc1Filename);
-
-                int iChannel = getChannelIndex(targetBand);
-
-                // acquisition time difference in days
-                double acquisitionTimeDiff = (recalibration.getTimeInMillis(
-                        sensingStart) - recalibration.getTimeInMillis(
-                        envisatLaunch)) / (1.0E3 * SECONDS_PER_DAY);
-
-                for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
-                    for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
-                        if (pm.isCanceled()) {
-                            break;
-                        }
-                        // TODO: activate if invalid flag has been defined
-                        //					if (isInvalid.getSampleBoolean(x, y)) {
-                        //						targetTile.setSample(x, y, 0);
-                        //					} else {
-                        final double reflectance = sourceTile.getSampleDouble(x, y);
-
-                        // Correct for nonlinearity
-                        double reflectanceCorrected1 = reflectance;
-                        if (iChannel == Recalibration.CHANNEL1600) {
-                            reflectanceCorrected1 = recalibration.getV16NonlinearityCorrectedReflectance(gc1Filename,
-                                                                                                         reflectance);
-                        }
-                        // Remove existing long term drift
-                        double reflectanceCorrected2 = recalibration.removeDriftCorrection(iChannel,
-                                                                                           removeDriftCorrIndex,
-                                                                                           acquisitionTimeDiff,
-                                                                                           reflectanceCorrected1);
-
-                        // Apply new long term drift corrections
-                        double reflectanceCorrectedAll = recalibration.applyDriftCorrection(sensingStartMillis, ati,
-                                                                                            atiPrev, atiNext,
-                                                                                            iChannel,
-                                                                                            reflectanceCorrected2);
-
-                        targetTile.setSample(x, y, reflectanceCorrectedAll);
-                    }
-                    pm.worked(1);
+                Tile sourceTile = sourceTiles.get(sourceBandName);
+                if (sourceTile == null) {
+                    sourceTile = getSourceTile(sourceProduct.getBand(sourceBandName), targetRectangle);
+                    sourceTiles.put(sourceBandName, sourceTile);
                 }
-                // flag target product as 'RECALIBRATED' in metadata
-                MetadataElement mph = targetProduct.getMetadataRoot().getElement("MPH");
-                mph.setAttributeString("RECALIBRATED", "YES");
-            } else {
-                // band is either:
-                //		- brightness temperature
-                //		- reflectance which shall not be recalibrated
-                // --> just copy from source
-                for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
-                    for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
-                        if (pm.isCanceled()) {
-                            break;
-                        }
-                        targetTile.setSample(x, y, sourceTile.getSampleDouble(x, y));
-                    }
-                    pm.worked(1);
+                // bands without kernel reference the source images and are not part of the stack
+                final RecalibrationKernel kernel = bandKernels.get(targetBand.getName());
+                final short[] lookupTable = bandLookupTables.get(targetBand.getName());
+                bandTiles.add(new BandTile(kernel, lookupTable, invalidPixels, sourceTile, entry.getValue()));
+                bandNames.add(targetBand.getName());
+            }
+
+            final long t1 = System.nanoTime();
+            for (int i = 0; i < targetRectangle.height; i++) {
+                if (pm.isCanceled()) {
+                    return;
+                }
+                for (BandTile bandTile : bandTiles) {
+                    bandTile.processRow(i);
+                }
+                pm.worked(1);
+            }
+            for (BandTile bandTile : bandTiles) {
+                bandTile.complete();
+            }
+            final RecalibrationMetrics metrics = RecalibrationMetrics.getInstance();
+            final long pixelsPerBand = (long) targetRectangle.width * targetRectangle.height;
+            metrics.tileStackComputed(bandNames.toArray(new String[bandNames.size()]), pixelsPerBand,
+                                      t1 - t0, System.nanoTime() - t1);
+            if (skippedTileCount > 0) {
+                metrics.tilesSkipped(skippedTileCount);
+            }
+            for (BandTile bandTile : bandTiles) {
+                if (bandTile.invalidPixels != null) {
+                    metrics.invalidPixelsPassed(bandTile.invalidPixels.invalidCount);
                 }
             }
         } catch (Exception e) {
+            RecalibrationMetrics.getInstance().tileStackFailed(targetTiles.size());
+            final DiagnosticsChannel channel = DiagnosticsChannel.getInstance();
+            // a systematic failure hits every tile, but the user is told only once per product
+            channel.publish(DiagnosticEvent.Type.LOG, sourceProduct.getName(),
+                            "Tile " + targetRectangle + " failed: " + e.getMessage());
+            if (failurePublished.compareAndSet(false, true)) {
+                channel.publish(DiagnosticEvent.Type.FAILED, sourceProduct.getName(), e.getMessage());
+            }
             // flag target product as 'FAILED' in metadata
             MetadataElement mph = targetProduct.getMetadataRoot().getElement("MPH");
             mph.setAttributeString("RECALIBRATED", "FAILED");
@@ -356,6 +823,260 @@ public class RecalibrateAATSRReflectancesOp extends Operator {
         }
     }
 
+    /**
+     * This method provides the invalid pixels of the view of a band within a tile rectangle. The
+     * confid flags of each view are only read once per tile stack.
+     *
+     * @param invalidPixelsByView - the invalid pixels already known, by confid flag band name
+     * @param sourceBandName      - the source band
+     * @param rectangle           - the tile rectangle
+     *
+     * @return the invalid pixels, or null if there are none or the confid flags are not available
+     */
+    private InvalidPixels getInvalidPixels(Map<String, InvalidPixels> invalidPixelsByView, String sourceBandName,
+                                           Rectangle rectangle) {
+        final String flagBandName = getConfidFlagBandName(sourceBandName);
+        if (invalidPixelsByView.containsKey(flagBandName)) {
+            return invalidPixelsByView.get(flagBandName);
+        }
+        InvalidPixels invalidPixels = null;
+        final Band flagBand = sourceProduct.getBand(flagBandName);
+        if (flagBand != null) {
+            invalidPixels = InvalidPixels.create(getSourceTile(flagBand, rectangle).getSamplesInt());
+        }
+        invalidPixelsByView.put(flagBandName, invalidPixels);
+        return invalidPixels;
+    }
+
+    /**
+     * This method copies the samples of a source band within a rectangle from its source image
+     *
+     * @param sourceBand - the source band
+     * @param rectangle  - the rectangle
+     *
+     * @return the raw samples
+     */
+    private static ProductData getSourceData(Band sourceBand, Rectangle rectangle) {
+        final Raster raster = sourceBand.getSourceImage().getData(rectangle);
+        final ProductData data = ProductData.createInstance(sourceBand.getDataType(),
+                                                            rectangle.width * rectangle.height);
+        raster.getDataElements(rectangle.x, rectangle.y, rectangle.width, rectangle.height, data.getElems());
+        return data;
+    }
+
+    /**
+     * This method checks the N1 file of the source product for the RECALIBRATED entry which the batch writes
+     * into a spare line of the MPH of patched N1 copies. The product reader maps the MPH fields at their fixed
+     * positions only, so this entry never gets into the metadata.
+     *
+     * @param productFile - the file of the source product, or null
+     *
+     * @return true if the file is an N1 file flagged as recalibrated
+     */
+    static boolean isRecalibratedN1File(File productFile) {
+        if (productFile == null || !productFile.getName().toLowerCase().endsWith(".n1") || !productFile.isFile()) {
+            return false;
+        }
+        try {
+            return "YES".equals(N1Header.read(productFile).getMph().get("RECALIBRATED"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * This method provides the confid flag band of the view of a reflectance band
+     *
+     * @param bandName - the reflectance band name
+     *
+     * @return the confid flag band name
+     */
+    static String getConfidFlagBandName(String bandName) {
+        return bandName.contains("_fward_") ? CONFID_FWARD_FLAGS : CONFID_NADIR_FLAGS;
+    }
+
+    /**
+     * This method checks if the confid flags of a pixel indicate that nothing was measured
+     *
+     * @param confidFlags - the confid flags of the pixel
+     *
+     * @return true if the pixel must not be recalibrated
+     */
+    static boolean isInvalidPixel(int confidFlags) {
+        return (confidFlags & INVALID_CONFID_FLAGS) != 0;
+    }
+
+    private static boolean isRawInt16(Band band) {
+        return band.getDataType() == ProductData.TYPE_INT16 && !band.isLog10Scaled();
+    }
+
+    @Override
+    public void dispose() {
+        if (subsetProduct != null) {
+            subsetProduct.dispose();
+            subsetProduct = null;
+        }
+        // delivers the pending messages and stops the delivery thread until the next message
+        DiagnosticsChannel.getInstance().close();
+        super.dispose();
+    }
+
+    /**
+     * Invalid pixels of one view within a tile rectangle, in row-major order.
+     */
+    private static class InvalidPixels {
+
+        private final boolean[] invalid;
+        private final int invalidCount;
+
+        private InvalidPixels(boolean[] invalid, int invalidCount) {
+            this.invalid = invalid;
+            this.invalidCount = invalidCount;
+        }
+
+        static InvalidPixels create(int[] confidFlags) {
+            final boolean[] invalid = new boolean[confidFlags.length];
+            int invalidCount = 0;
+            for (int i = 0; i < confidFlags.length; i++) {
+                if (isInvalidPixel(confidFlags[i])) {
+                    invalid[i] = true;
+                    invalidCount++;
+                }
+            }
+            return invalidCount > 0 ? new InvalidPixels(invalid, invalidCount) : null;
+        }
+
+        boolean isAllInvalid() {
+            return invalidCount == invalid.length;
+        }
+    }
+
+    /**
+     * Source and target tile of one band within a tile stack, processed row by row.
+     * Recalibrated reflectances are stored as scaled 16 bit integers in AATSR L1b products, so the
+     * raw samples are mapped by the lookup table of the band, which holds the kernel in raw sample
+     * space. Any other data type is recalibrated with the row kernels on the geophysical samples,
+     * {@code float} bands in single and all others in double precision. Invalid pixels and no-data
+     * pixels are passed through unchanged.
+     */
+    private static class BandTile {
+
+        private final RecalibrationKernel kernel;
+        private final short[] lookupTable;
+        private final InvalidPixels invalidPixels;
+        private final Tile sourceTile;
+        private final Tile targetTile;
+        private final Rectangle rectangle;
+        private final ProductData sourceData;
+        private final ProductData targetData;
+        private final float[] sourceFloats;
+        private final float[] targetFloats;
+        private final double[] sourceDoubles;
+        private final double[] targetDoubles;
+        // one row, recalibrated in place
+        private final float[] floatRow;
+        private final double[] doubleRow;
+
+        BandTile(RecalibrationKernel kernel, short[] lookupTable, InvalidPixels invalidPixels,
+                 Tile sourceTile, Tile targetTile) {
+            this.kernel = kernel;
+            this.lookupTable = lookupTable;
+            this.invalidPixels = invalidPixels;
+            this.sourceTile = sourceTile;
+            this.targetTile = targetTile;
+            rectangle = targetTile.getRectangle();
+
+            if (lookupTable != null) {
+                sourceData = sourceTile.getRawSamples();
+                targetData = targetTile.getRawSamples();
+                sourceFloats = null;
+                targetFloats = null;
+                sourceDoubles = null;
+                targetDoubles = null;
+                floatRow = null;
+                doubleRow = null;
+            } else if (sourceTile.getRasterDataNode().getDataType() == ProductData.TYPE_FLOAT32) {
+                sourceData = null;
+                targetData = null;
+                sourceFloats = sourceTile.getSamplesFloat();
+                targetFloats = sourceFloats.clone();
+                sourceDoubles = null;
+                targetDoubles = null;
+                floatRow = new float[rectangle.width];
+                doubleRow = null;
+            } else {
+                sourceData = null;
+                targetData = null;
+                sourceFloats = null;
+                targetFloats = null;
+                sourceDoubles = sourceTile.getSamplesDouble();
+                targetDoubles = sourceDoubles.clone();
+                floatRow = null;
+                doubleRow = new double[rectangle.width];
+            }
+        }
+
+        /**
+         * This method processes one row of the tile
+         *
+         * @param i - the row index relative to the tile rectangle
+         */
+        void processRow(int i) {
+            final int width = rectangle.width;
+            final int rowOffset = i * width;
+            final boolean[] invalid = invalidPixels != null ? invalidPixels.invalid : null;
+            if (lookupTable != null) {
+                final short[] sourceSamples = (short[]) sourceData.getElems();
+                final short[] targetSamples = (short[]) targetData.getElems();
+                if (invalid == null) {
+                    for (int x = rowOffset; x < rowOffset + width; x++) {
+                        targetSamples[x] = lookupTable[sourceSamples[x] & 0xffff];
+                    }
+                } else {
+                    for (int x = rowOffset; x < rowOffset + width; x++) {
+                        targetSamples[x] = invalid[x] ? sourceSamples[x] : lookupTable[sourceSamples[x] & 0xffff];
+                    }
+                }
+            } else {
+                // the target row starts as a copy of the source row, see the constructor
+                if (targetFloats != null) {
+                    System.arraycopy(sourceFloats, rowOffset, floatRow, 0, width);
+                    kernel.apply(floatRow, width);
+                    for (int x = 0; x < width; x++) {
+                        if (isValid(invalid, rowOffset, x, i)) {
+                            targetFloats[rowOffset + x] = floatRow[x];
+                        }
+                    }
+                } else {
+                    System.arraycopy(sourceDoubles, rowOffset, doubleRow, 0, width);
+                    kernel.apply(doubleRow, width);
+                    for (int x = 0; x < width; x++) {
+                        if (isValid(invalid, rowOffset, x, i)) {
+                            targetDoubles[rowOffset + x] = doubleRow[x];
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean isValid(boolean[] invalid, int rowOffset, int x, int i) {
+            return (invalid == null || !invalid[rowOffset + x]) &&
+                   sourceTile.isSampleValid(rectangle.x + x, rectangle.y + i);
+        }
+
+        /**
+         * This method writes the samples back to the target tile
+         */
+        void complete() {
+            if (targetData != null) {
+                targetTile.setRawSamples(targetData);
+            } else if (targetFloats != null) {
+                targetTile.setSamples(targetFloats);
+            } else {
+                targetTile.setSamples(targetDoubles);
+            }
+        }
+    }
 
     public static class Spi extends OperatorSpi {
 
@@ -1,17 +1,12 @@
 package org.esa.beam.aatsrrecalibration.operators;
 
+import org.esa.beam.aatsrrecalibration.util.DiagnosticEvent;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticsChannel;
 import org.esa.beam.aatsrrecalibration.util.RecalibrationUtils;
+import org.esa.beam.aatsrrecalibration.util.TimeParser;
 import org.esa.beam.framework.gpf.OperatorException;
 
-import java.util.Calendar;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.StringTokenizer;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.io.File;
 
 /**
@@ -25,28 +20,27 @@ public class Recalibration {
     public static final int CHANNEL870 = 2;
     public static final int CHANNEL1600 = 3;
 
-    private static final Map<String, String> months = new HashMap<String, String>();
-
-
-    static {
-        months.put("JAN", "1");
-        months.put("FEB", "2");
-        months.put("MAR", "3");
-        months.put("APR", "4");
-        months.put("MAY", "5");
-        months.put("JUN", "6");
-        months.put("JUL", "7");
-        months.put("AUG", "8");
-        months.put("SEP", "9");
-        months.put("OCT", "10");
-        months.put("NOV", "11");
-        months.put("DEC", "12");
-    }
+    // drift correction applied in the L1b processing, see getRemoveDriftCorrectionIndex
+    public static final int NO_DRIFT_CORRECTION = 0;
+    public static final int EXPONENTIAL_DRIFT_CORRECTION = 1;
+    public static final int THIN_FILM_DRIFT_CORRECTION = 2;
+
+    // VC1 generation times at which the applied drift correction changed
+    private static final long EXPONENTIAL_DRIFT_CORRECTION_START = TimeParser.parseMillis("29-NOV-2005 13:20:26");
+    private static final long THIN_FILM_DRIFT_CORRECTION_START = TimeParser.parseMillis("18-DEC-2006 20:14:15");
+    private static final long NO_DRIFT_CORRECTION_GAP_START = TimeParser.parseMillis("04-APR-2010 00:00:00");
+    private static final long NO_DRIFT_CORRECTION_GAP_END = TimeParser.parseMillis("13-JUL-2010 00:00:00");
+    private static final long ENVISAT_LAUNCH = TimeParser.parseMillis("01-MAR-2002 00:00:00");
 
     public static final String DRIFT_TABLE_DEFAULT_FILE_NAME = "AATSR_VIS_DRIFT_V00-17.DAT";
-    // make sure that the following value corresponds to the file above
-    private static final int DRIFT_TABLE_MAX_LENGTH = 5000;
-    private static final int DRIFT_TABLE_HEADER_LINES = 6;
+
+    // GC1 file for which the 1.6um nonlinearity correction has NOT yet been applied
+    private static final String V16_NONLINEARITY_GC1_FILE_NAME =
+            "ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000";
+    // Nonlinearity coefficients from pre-launch calibration
+    private static final double[] V16_NONLINEARITY_COEFFICIENTS = new double[]{-0.000027, -0.1093, 0.009393, 0.001013};
+    // linear conversion of 1.6um reflectance (in percent) back to raw signal
+    private static final double V16_VOLTS_PER_REFLECTANCE = -0.816 / 100.0 / 0.192;
 
     private DriftTable driftTable;
     private int driftTableLength;
@@ -59,69 +53,35 @@ public class Recalibration {
         this.useOwnDriftTable = useOwnDriftTable;
         this.userDriftTablePath = userDriftTablePath;
     }
-    
-    protected void readDriftTable() throws IOException {
-        BufferedReader bufferedReader;
-        InputStream inputStream = null;
-        if (!useOwnDriftTable || userDriftTablePath == null || userDriftTablePath.length() == 0) {
-            inputStream = RecalibrateAATSRReflectancesOp.class.getResourceAsStream(DRIFT_TABLE_DEFAULT_FILE_NAME);
-            bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        } else {
-            if (userDriftTablePath.isFile()) {
-                bufferedReader = new BufferedReader(new FileReader(userDriftTablePath));
-            } else {
-                throw new OperatorException("Failed to load drift correction table '" + userDriftTablePath + "'.");
-            }
-        }
 
-        StringTokenizer st;
-        try {
-            driftTable = new DriftTable();
-
-            // skip header lines
-            for (int i = 0; i < DRIFT_TABLE_HEADER_LINES; i++) {
-                bufferedReader.readLine();
-            }
+    /**
+     * Creates a recalibration with the given drift table, which must not be read again.
+     *
+     * @param driftTable - the drift table
+     */
+    public Recalibration(DriftTable driftTable) {
+        this.driftTable = driftTable;
+        this.driftTableLength = driftTable.getLength();
+    }
 
-            int i = 0;
-            String line;
-            while ((line = bufferedReader.readLine()) != null && i < DRIFT_TABLE_MAX_LENGTH) {
-                line = line.substring(8); // skip index column
-                line = line.trim();
-                st = new StringTokenizer(line, "   ", false);
-                if (st.hasMoreTokens()) {
-                    // date and time (2 tokens)
-                    String date = st.nextToken() + " " + st.nextToken();
-                    driftTable.setDate(i, date);
-                }
-                if (st.hasMoreTokens()) {
-                    // drift560
-                    driftTable.setDrift560(i, Double.parseDouble(st.nextToken()));
-                }
-                if (st.hasMoreTokens()) {
-                    // drift660
-                    driftTable.setDrift670(i, Double.parseDouble(st.nextToken()));
-                }
-                if (st.hasMoreTokens()) {
-                    // drift870
-                    driftTable.setDrift870(i, Double.parseDouble(st.nextToken()));
-                }
-                if (st.hasMoreTokens()) {
-                    // drift1600
-                    driftTable.setDrift1600(i, Double.parseDouble(st.nextToken()));
+    public void readDriftTable() throws IOException {
+        try {
+            // tables are shared by all operator instances of this process
+            if (!useOwnDriftTable || userDriftTablePath == null || userDriftTablePath.length() == 0) {
+                driftTable = DriftTableCache.getInstance().getResourceTable(DRIFT_TABLE_DEFAULT_FILE_NAME);
+            } else {
+                if (userDriftTablePath.isFile()) {
+                    driftTable = DriftTableCache.getInstance().getFileTable(userDriftTablePath);
+                } else {
+                    throw new OperatorException("Failed to load drift correction table '" + userDriftTablePath + "'.");
                 }
-                i++;
             }
-            driftTableLength = i;
         } catch (IOException e) {
             throw new OperatorException("Failed to load Drift Correction Table: \n" + e.getMessage(), e);
         } catch (NumberFormatException e) {
             throw new OperatorException("Failed to load Drift Correction Table: \n" + e.getMessage(), e);
-        } finally {
-            if (inputStream != null) {
-                inputStream.close();
-            }
         }
+        driftTableLength = driftTable.getLength();
     }
 
 
@@ -138,14 +98,14 @@ public class Recalibration {
         double volts;
 
         // Nonlinearity coefficients from pre-launch calibration
-        final double[] A = new double[]{-0.000027, -0.1093, 0.009393, 0.001013};
+        final double[] A = V16_NONLINEARITY_COEFFICIENTS;
 
         // Find out if nonlinearity correction has already been applied - uses name of GC1 file
 
         // Nonlinearity Correction NOT yet applied:
-        if (gc1Filename.equals("ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000")) {
+        if (isV16NonlinearityCorrectionRequired(gc1Filename)) {
             // Convert 1.6um reflectance back to raw signal using linear conversion
-            volts = -0.816 * (reflectance/100.0) / 0.192;
+            volts = V16_VOLTS_PER_REFLECTANCE * reflectance;
             // Convert 1.6um raw signal to reflectance using non-linear conversion function
             correctedReflectance = Math.PI * (A[0] + A[1]*volts + A[2]*volts*volts + A[3]*volts*volts*volts) / 1.553;
             correctedReflectance *= 100.0;
@@ -155,6 +115,55 @@ public class Recalibration {
         return correctedReflectance;
     }
 
+    /**
+     * This method checks from the GC1 file name whether the nonlinearity correction for the
+     * 1.6um channel still has to be applied.
+     *
+     * @param gc1Filename - the GC1 file name (given in DSD.32 metadata)
+     *
+     * @return true if the nonlinearity correction is required
+     */
+    public boolean isV16NonlinearityCorrectionRequired(String gc1Filename) {
+        return gc1Filename.equals(V16_NONLINEARITY_GC1_FILE_NAME);
+    }
+
+    /**
+     * This method combines nonlinearity correction, removal of the existing drift correction and
+     * application of the new drift correction into one kernel. Since all inputs are fixed for a
+     * given product and channel, the kernel is valid for all pixels of the corresponding band.
+     *
+     * @param gc1Filename - the GC1 file name (given in DSD.32 metadata)
+     * @param iChannel    - the input channel index
+     * @param correction  - the correction index as determined in {@link #getRemoveDriftCorrectionIndex}
+     * @param tDiff       - time difference between sensing start and Envisat launch time
+     * @param t           - acquisition time
+     * @param ati         - acquisition time index in lookup table
+     * @param t1          - time in lookup table previous to acquisition time
+     * @param t2          - time in lookup table next to acquisition time
+     *
+     * @return the kernel
+     */
+    protected RecalibrationKernel createKernel(String gc1Filename, int iChannel, int correction, double tDiff,
+                                               double t, int ati, double t1, double t2) {
+        // both drift steps are linear in the reflectance, so applying them to 1.0 yields the combined gain
+        final double gain = applyDriftCorrection(t, ati, t1, t2, iChannel,
+                                                 removeDriftCorrection(iChannel, correction, tDiff, 1.0));
+
+        if (iChannel == CHANNEL1600 && isV16NonlinearityCorrectionRequired(gc1Filename)) {
+            // expand the nonlinearity correction into a polynomial in the reflectance
+            final double[] A = V16_NONLINEARITY_COEFFICIENTS;
+            final double scale = gain * 100.0 * Math.PI / 1.553;
+            final double[] c = new double[A.length];
+            double voltsPower = 1.0;
+            for (int i = 0; i < A.length; i++) {
+                c[i] = scale * A[i] * voltsPower;
+                voltsPower *= V16_VOLTS_PER_REFLECTANCE;
+            }
+            return new RecalibrationKernel(gain, c);
+        }
+        return new RecalibrationKernel(gain);
+    }
+
 /**
      * This method computes the drift correction which has to be removed according to the
      * correction index as determined in {@link #getRemoveDriftCorrectionIndex}
@@ -202,15 +211,9 @@ public class Recalibration {
      *
      * @return correctionIndex
      */
-    protected int getRemoveDriftCorrectionIndex(String vc1Filename) {
-        String year = vc1Filename.substring(14, 18);
-        String month = vc1Filename.substring(18, 20);
-        String day = vc1Filename.substring(20, 22);
-        String hour = vc1Filename.substring(23, 25);
-        String mins = vc1Filename.substring(25, 27);
-        String secs = vc1Filename.substring(27, 29);
-
-        String refTime = day + '-' + month + '-' + year + ' ' + hour + ':' + mins + ':' + secs;
+    public int getRemoveDriftCorrectionIndex(String vc1Filename) {
+        // generation time of the VC1 file, e.g. ATS_VC1_AXVIEC20080607_043326_...
+        final long refTime = TimeParser.parseCompactMillis(vc1Filename, 14);
 
         int correctionIndex;
         
@@ -220,15 +223,15 @@ public class Recalibration {
 //      incorrectly removing the corrections.  A fix has been implemented to perform no modification to L1b reflectances
 //      where VC1 files generated during that period.
 
-        if (getTimeInMillis(refTime) < getTimeInMillis("29-NOV-2005 13:20:26") ||
-                (getTimeInMillis(refTime) >= getTimeInMillis("04-APR-2010 00:00:00") &&
-                 getTimeInMillis(refTime) <  getTimeInMillis("13-JUL-2010 00:00:00"))) {
-            correctionIndex = 0; // No Correction is Applied
-        } else if (getTimeInMillis(refTime) >= getTimeInMillis("29-NOV-2005 13:20:26") &&
-                getTimeInMillis(refTime) < getTimeInMillis("18-DEC-2006 20:14:15")) {
-            correctionIndex = 1; // Exponential Drift Correction is Applied
+        if (refTime < EXPONENTIAL_DRIFT_CORRECTION_START ||
+                (refTime >= NO_DRIFT_CORRECTION_GAP_START &&
+                 refTime <  NO_DRIFT_CORRECTION_GAP_END)) {
+            correctionIndex = NO_DRIFT_CORRECTION; // No Correction is Applied
+        } else if (refTime >= EXPONENTIAL_DRIFT_CORRECTION_START &&
+                refTime < THIN_FILM_DRIFT_CORRECTION_START) {
+            correctionIndex = EXPONENTIAL_DRIFT_CORRECTION; // Exponential Drift Correction is Applied
         } else {
-            correctionIndex = 2; // Thin Film Drift Correction is Applied
+            correctionIndex = THIN_FILM_DRIFT_CORRECTION; // Thin Film Drift Correction is Applied
         }
         return correctionIndex;
     }
@@ -253,28 +256,10 @@ public class Recalibration {
         double y1;
         double y2;
 
-        switch (iChannel) {
-            case 0:
-                y1 = driftTable.getDrift560()[ati];
-                y2 = driftTable.getDrift560()[ati + 1];
-                drift = linearInterpol(t, t1, t2, y1, y2);
-                break;
-            case 1:
-                y1 = driftTable.getDrift670()[ati];
-                y2 = driftTable.getDrift670()[ati + 1];
-                drift = linearInterpol(t, t1, t2, y1, y2);
-                break;
-            case 2:
-                y1 = driftTable.getDrift870()[ati];
-                y2 = driftTable.getDrift870()[ati + 1];
-                drift = linearInterpol(t, t1, t2, y1, y2);
-                break;
-            case 3:
-                y1 = driftTable.getDrift1600()[ati];
-                y2 = driftTable.getDrift1600()[ati + 1];
-                drift = linearInterpol(t, t1, t2, y1, y2);
-            default:
-                break;
+        if (iChannel >= CHANNEL550 && iChannel <= CHANNEL1600) {
+            y1 = driftTable.getDrift(iChannel, ati);
+            y2 = driftTable.getDrift(iChannel, ati + 1);
+            drift = linearInterpol(t, t1, t2, y1, y2);
         }
 
         correctedReflectance = reflectance / drift;
@@ -307,46 +292,47 @@ public class Recalibration {
     }
 
     protected int getAcquisitionTimeIndex(String acquisitionTime) {
-        int acquisitionTimeIndex = -1;
-
-        for (int i = 0; i < driftTableLength; i++) {
-            if (getTimeInMillis(acquisitionTime) < getTimeInMillis(driftTable.getDate()[i])) {
-                acquisitionTimeIndex = i - 1;
-                break;
-            }
-        }
+        return getAcquisitionTimeIndex(getTimeInMillis(acquisitionTime));
+    }
 
-        return acquisitionTimeIndex;
+    /**
+     * This method provides the index of the drift table entry previous to the given time.
+     *
+     * @param acquisitionTime - acquisition time in millis
+     *
+     * @return the index, or -1 if the time is outside the drift table
+     */
+    protected int getAcquisitionTimeIndex(long acquisitionTime) {
+        return driftTable.getTimeIndex(acquisitionTime);
     }
 
     protected double getAcquisitionTimeIndexPrevious(int acquisitionTimeIndex) {
-        return getTimeInMillis(driftTable.getDate()[acquisitionTimeIndex]);
+        return driftTable.getTime(acquisitionTimeIndex);
     }
 
     protected double getAcquisitionTimeIndexNext(int acquisitionTimeIndex) {
-        return getTimeInMillis(driftTable.getDate()[acquisitionTimeIndex+1]);
+        return driftTable.getTime(acquisitionTimeIndex+1);
     }
 
-    protected boolean checkAcquisitionTimeRange(String acquisitionTime) throws OperatorException {
-        final String envisatLaunch = "01-MAR-2002 00:00:00";
-
-        if (getTimeInMillis(acquisitionTime) < getTimeInMillis(envisatLaunch)) {
+    public boolean checkAcquisitionTimeRange(String acquisitionTime) throws OperatorException {
+        final long acquisitionTimeMillis = getTimeInMillis(acquisitionTime);
+        if (acquisitionTimeMillis < ENVISAT_LAUNCH) {
             throw new OperatorException("ERROR in AATSR recalibration: Acquisition time " + acquisitionTime + " before ENVISAT launch date.\n");
         }
 
-        String driftTableStartDate = driftTable.getDate()[0];
-        if (getTimeInMillis(acquisitionTime) < getTimeInMillis(driftTableStartDate)) {
-            org.esa.beam.aatsrrecalibration.util.RecalibrationUtils.logInfoMessage
-                    ("AATSR recalibration: Acquisition time " + acquisitionTime +
-                     " before start time of drift table. No recalibration performed, original data will be written to target product.\n");
+        if (acquisitionTimeMillis < driftTable.getTime(0)) {
+            DiagnosticsChannel.getInstance().publish(
+                    DiagnosticEvent.Type.OUT_OF_RANGE, null,
+                    "AATSR recalibration: Acquisition time " + acquisitionTime + " before start time of drift table. " +
+                    "No recalibration performed, original data will be written to target product.");
             return false;
         }
 
-        String driftTableEndDate = driftTable.getDate()[driftTableLength - 1];
-        if (getTimeInMillis(acquisitionTime) > getTimeInMillis(driftTableEndDate)) {
-            org.esa.beam.aatsrrecalibration.util.RecalibrationUtils.logInfoMessage
-                    ("AATSR recalibration: Acquisition time " + acquisitionTime +
-                     " after last time of drift table. No recalibration performed, original data will be written to target product.\n");
+        if (acquisitionTimeMillis > driftTable.getTime(driftTableLength - 1)) {
+            DiagnosticsChannel.getInstance().publish(
+                    DiagnosticEvent.Type.OUT_OF_RANGE, null,
+                    "AATSR recalibration: Acquisition time " + acquisitionTime + " after last time of drift table. " +
+                    "No recalibration performed, original data will be written to target product.");
             return false;
         }
         return true;
@@ -363,74 +349,6 @@ public class Recalibration {
      * @return the time in millis
      */
     protected long getTimeInMillis(String timeString) {
-        long driftTableTime;
-
-        Calendar driftTableDate = Calendar.getInstance();
-        if (Character.isDigit(timeString.charAt(3))) {
-            driftTableDate.set(Calendar.YEAR, Integer.parseInt(timeString.substring(6, 10)));
-            String driftTableMonth = timeString.substring(3, 5);
-            driftTableDate.set(Calendar.MONTH, Integer.parseInt(driftTableMonth));
-        } else {
-            driftTableDate.set(Calendar.YEAR, Integer.parseInt(timeString.substring(7, 11)));
-            String driftTableMonth = timeString.substring(3, 6);
-            String month = months.get(driftTableMonth);
-            driftTableDate.set(Calendar.MONTH, Integer.parseInt(month));
-        }
-        driftTableDate.set(Calendar.DAY_OF_MONTH, Integer.parseInt(timeString.substring(0, 2)));
-
-        driftTableTime = driftTableDate.getTimeInMillis();
-        return driftTableTime;
-    }
-
-    /**
-     * Object providing the drift data for the 4 channels
-     * 
-     */
-    private class DriftTable {
-        private String[] date = new String[DRIFT_TABLE_MAX_LENGTH];
-        private double[] drift560 = new double[DRIFT_TABLE_MAX_LENGTH];
-        private double[] drift670 = new double[DRIFT_TABLE_MAX_LENGTH];
-        private double[] drift870 = new double[DRIFT_TABLE_MAX_LENGTH];
-        private double[] drift1600 = new double[DRIFT_TABLE_MAX_LENGTH];
-
-        public String[] getDate() {
-            return date;
-        }
-
-        public double[] getDrift560() {
-            return drift560;
-        }
-
-        public double[] getDrift670() {
-            return drift670;
-        }
-
-        public double[] getDrift870() {
-            return drift870;
-        }
-
-        public double[] getDrift1600() {
-            return drift1600;
-        }
-
-        public void setDate(int index, String value) {
-            date[index] = value;
-        }
-
-        public void setDrift560(int index, double value) {
-            drift560[index] = value;
-        }
-
-        public void setDrift670(int index, double value) {
-            drift670[index] = value;
-        }
-
-        public void setDrift870(int index, double value) {
-            drift870[index] = value;
-        }
-
-        public void setDrift1600(int index, double value) {
-            drift1600[index] = value;
-        }
+        return TimeParser.parseMillis(timeString);
     }
 }
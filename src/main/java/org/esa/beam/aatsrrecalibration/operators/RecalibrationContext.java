@@ -0,0 +1,116 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything the recalibration of one product depends on, resolved once from the product
+ * metadata and the drift table. Instances are immutable and are shared by all tile threads.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class RecalibrationContext {
+
+    public static final String ENVISAT_LAUNCH = "01-MAR-2002 00:00:00";
+
+    private static final double SECONDS_PER_DAY = 86400;
+
+    private final String sensingStart;
+    private final String vc1Filename;
+    private final String gc1Filename;
+    private final int removeDriftCorrectionIndex;
+    private final int acquisitionTimeIndex;
+    private final double acquisitionTimeIndexPrevious;
+    private final double acquisitionTimeIndexNext;
+    private final double sensingStartMillis;
+    private final double acquisitionTimeDiff;
+    private final Map<String, RecalibrationKernel> kernels;
+
+    /**
+     * Creates the context and the kernels for the given bands.
+     *
+     * @param recalibration - the recalibration, with the drift table already read
+     * @param sensingStart  - the sensing start time (dd-MMM-yyyy hh:mm:ss)
+     * @param vc1Filename   - the VC1 file name (given in DSD.31 metadata)
+     * @param gc1Filename   - the GC1 file name (given in DSD.32 metadata)
+     * @param bandChannels  - the channel index of each band to be recalibrated, by band name
+     */
+    public RecalibrationContext(Recalibration recalibration, String sensingStart, String vc1Filename,
+                                String gc1Filename, Map<String, Integer> bandChannels) {
+        this.sensingStart = sensingStart;
+        this.vc1Filename = vc1Filename;
+        this.gc1Filename = gc1Filename;
+
+        removeDriftCorrectionIndex = recalibration.getRemoveDriftCorrectionIndex(vc1Filename);
+        acquisitionTimeIndex = recalibration.getAcquisitionTimeIndex(sensingStart);
+        acquisitionTimeIndexPrevious = recalibration.getAcquisitionTimeIndexPrevious(acquisitionTimeIndex);
+        acquisitionTimeIndexNext = recalibration.getAcquisitionTimeIndexNext(acquisitionTimeIndex);
+        final long sensingStartTime = recalibration.getTimeInMillis(sensingStart);
+        sensingStartMillis = sensingStartTime;
+
+        // acquisition time difference in days
+        acquisitionTimeDiff = (sensingStartTime - recalibration.getTimeInMillis(ENVISAT_LAUNCH)) /
+                              (1.0E3 * SECONDS_PER_DAY);
+
+        final Map<String, RecalibrationKernel> kernelMap = new HashMap<String, RecalibrationKernel>();
+        for (Map.Entry<String, Integer> entry : bandChannels.entrySet()) {
+            kernelMap.put(entry.getKey(), recalibration.createKernel(gc1Filename, entry.getValue(),
+                                                                     removeDriftCorrectionIndex, acquisitionTimeDiff,
+                                                                     sensingStartMillis, acquisitionTimeIndex,
+                                                                     acquisitionTimeIndexPrevious,
+                                                                     acquisitionTimeIndexNext));
+        }
+        kernels = Collections.unmodifiableMap(kernelMap);
+    }
+
+    public String getSensingStart() {
+        return sensingStart;
+    }
+
+    public String getVc1Filename() {
+        return vc1Filename;
+    }
+
+    public String getGc1Filename() {
+        return gc1Filename;
+    }
+
+    public int getRemoveDriftCorrectionIndex() {
+        return removeDriftCorrectionIndex;
+    }
+
+    public int getAcquisitionTimeIndex() {
+        return acquisitionTimeIndex;
+    }
+
+    public double getAcquisitionTimeIndexPrevious() {
+        return acquisitionTimeIndexPrevious;
+    }
+
+    public double getAcquisitionTimeIndexNext() {
+        return acquisitionTimeIndexNext;
+    }
+
+    public double getSensingStartMillis() {
+        return sensingStartMillis;
+    }
+
+    public double getAcquisitionTimeDiff() {
+        return acquisitionTimeDiff;
+    }
+
+    /**
+     * @param bandName - the band name
+     *
+     * @return the kernel for the band, or null if the band is not recalibrated
+     */
+    public RecalibrationKernel getKernel(String bandName) {
+        return kernels.get(bandName);
+    }
+
+    public Map<String, RecalibrationKernel> getKernels() {
+        return kernels;
+    }
+}
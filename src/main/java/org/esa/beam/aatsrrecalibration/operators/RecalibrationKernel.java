@@ -0,0 +1,209 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+/**
+ * Recalibration of one reflectance channel of one product, reduced to a single gain or,
+ * for the 1.6um channel with nonlinearity correction, to a cubic polynomial.
+ * Instances are immutable and can be shared between tile threads.
+ * <p/>
+ * For 16 bit bands the operator applies the kernel through a lookup table in raw sample space,
+ * see {@link #toLookupTable}. Other bands are recalibrated row by row, {@code float} bands with
+ * {@link #apply(float[], int)} and all others with {@link #apply(double[], int)}. The {@code double}
+ * methods are the reference implementation; both agree to float precision.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class RecalibrationKernel {
+
+    // one entry for each 16 bit sample value
+    public static final int LOOKUP_TABLE_SIZE = 65536;
+
+    private final double gain;
+    private final double[] coefficients;
+
+    // float copies for the row loop, a linear kernel is the polynomial 0 + gain * r
+    private final float c0;
+    private final float c1;
+    private final float c2;
+    private final float c3;
+
+    /**
+     * Creates a kernel which multiplies each reflectance by the given gain.
+     *
+     * @param gain - the combined gain of drift removal and new drift correction
+     */
+    RecalibrationKernel(double gain) {
+        this.gain = gain;
+        this.coefficients = null;
+        c0 = 0.0f;
+        c1 = (float) gain;
+        c2 = 0.0f;
+        c3 = 0.0f;
+    }
+
+    /**
+     * Creates a kernel which evaluates a cubic polynomial in the reflectance.
+     *
+     * @param gain         - the combined gain of drift removal and new drift correction
+     * @param coefficients - the polynomial coefficients c0..c3, with the gain already applied
+     */
+    RecalibrationKernel(double gain, double[] coefficients) {
+        this.gain = gain;
+        this.coefficients = coefficients.clone();
+        c0 = (float) coefficients[0];
+        c1 = (float) coefficients[1];
+        c2 = (float) coefficients[2];
+        c3 = (float) coefficients[3];
+    }
+
+    public double getGain() {
+        return gain;
+    }
+
+    public boolean isLinear() {
+        return coefficients == null;
+    }
+
+    /**
+     * @return the polynomial coefficients c0..c3, or null if the kernel is linear
+     */
+    public double[] getCoefficients() {
+        return coefficients == null ? null : coefficients.clone();
+    }
+
+    /**
+     * This method provides the kernel as band maths expression, e.g. for virtual bands
+     *
+     * @param variable - name of the band holding the input reflectances
+     *
+     * @return the expression
+     */
+    public String toExpression(String variable) {
+        if (coefficients == null) {
+            return gain + " * " + variable;
+        }
+        final double[] c = coefficients;
+        return c[0] + " + " + variable + " * (" + c[1] + " + " + variable + " * (" + c[2] + " + " +
+               variable + " * " + c[3] + "))";
+    }
+
+    /**
+     * This method creates the kernel which maps raw samples to raw samples, i.e. which includes the
+     * scaling of the source and the inverse scaling of the target band.
+     *
+     * @param sourceFactor - scaling factor of the source band
+     * @param sourceOffset - scaling offset of the source band
+     * @param targetFactor - scaling factor of the target band
+     * @param targetOffset - scaling offset of the target band
+     *
+     * @return the kernel in raw sample space
+     */
+    public RecalibrationKernel toRawSpace(double sourceFactor, double sourceOffset,
+                                          double targetFactor, double targetOffset) {
+        if (coefficients == null && sourceOffset == 0.0 && targetOffset == 0.0) {
+            return new RecalibrationKernel(gain * sourceFactor / targetFactor);
+        }
+        final double[] c = coefficients != null ? coefficients : new double[]{0.0, gain, 0.0, 0.0};
+        // q(x) = (p(s * x + o) - targetOffset) / targetFactor
+        final double s = sourceFactor;
+        final double o = sourceOffset;
+        final double[] q = new double[4];
+        q[0] = (c[0] + o * (c[1] + o * (c[2] + o * c[3])) - targetOffset) / targetFactor;
+        q[1] = s * (c[1] + o * (2.0 * c[2] + o * 3.0 * c[3])) / targetFactor;
+        q[2] = s * s * (c[2] + o * 3.0 * c[3]) / targetFactor;
+        q[3] = s * s * s * c[3] / targetFactor;
+        return new RecalibrationKernel(gain, q);
+    }
+
+    /**
+     * This method creates the lookup table of the kernel in raw sample space for 16 bit bands. The entry
+     * {@code raw & 0xffff} holds the recalibrated raw sample, computed in double precision,
+     * truncated like Tile.setSample(x, y, double) and clipped to the 16 bit range.
+     *
+     * @param sourceFactor - scaling factor of the source band
+     * @param sourceOffset - scaling offset of the source band
+     * @param targetFactor - scaling factor of the target band
+     * @param targetOffset - scaling offset of the target band
+     *
+     * @return the lookup table, indexed by the unsigned source sample
+     */
+    public short[] toLookupTable(double sourceFactor, double sourceOffset, double targetFactor, double targetOffset) {
+        final RecalibrationKernel rawKernel = toRawSpace(sourceFactor, sourceOffset, targetFactor, targetOffset);
+        final short[] lookupTable = new short[LOOKUP_TABLE_SIZE];
+        for (int i = 0; i < LOOKUP_TABLE_SIZE; i++) {
+            final double value = rawKernel.apply((double) (short) i);
+            if (value <= Short.MIN_VALUE) {
+                lookupTable[i] = Short.MIN_VALUE;
+            } else if (value >= Short.MAX_VALUE) {
+                lookupTable[i] = Short.MAX_VALUE;
+            } else {
+                lookupTable[i] = (short) (int) value;
+            }
+        }
+        return lookupTable;
+    }
+
+    /**
+     * This method recalibrates a single reflectance (reference implementation)
+     *
+     * @param reflectance - input reflectance
+     *
+     * @return recalibrated reflectance
+     */
+    public double apply(double reflectance) {
+        if (coefficients == null) {
+            return reflectance * gain;
+        }
+        final double[] c = coefficients;
+        return c[0] + reflectance * (c[1] + reflectance * (c[2] + reflectance * c[3]));
+    }
+
+    /**
+     * This method recalibrates the first {@code length} reflectances of the given buffer in place
+     * (reference implementation)
+     *
+     * @param reflectances - buffer of input reflectances
+     * @param length       - number of reflectances to recalibrate
+     */
+    public void apply(double[] reflectances, int length) {
+        if (coefficients == null) {
+            for (int i = 0; i < length; i++) {
+                reflectances[i] *= gain;
+            }
+        } else {
+            final double c0 = coefficients[0];
+            final double c1 = coefficients[1];
+            final double c2 = coefficients[2];
+            final double c3 = coefficients[3];
+            for (int i = 0; i < length; i++) {
+                final double r = reflectances[i];
+                reflectances[i] = c0 + r * (c1 + r * (c2 + r * c3));
+            }
+        }
+    }
+
+    /**
+     * This method recalibrates the first {@code length} reflectances of the given buffer in place.
+     * The loops have no branches and no calls, so that they can be vectorized by the JIT.
+     *
+     * @param reflectances - buffer of input reflectances
+     * @param length       - number of reflectances to recalibrate
+     */
+    public void apply(float[] reflectances, int length) {
+        if (coefficients == null) {
+            final float g = c1;
+            for (int i = 0; i < length; i++) {
+                reflectances[i] *= g;
+            }
+        } else {
+            final float a0 = c0;
+            final float a1 = c1;
+            final float a2 = c2;
+            final float a3 = c3;
+            for (int i = 0; i < length; i++) {
+                final float r = reflectances[i];
+                reflectances[i] = a0 + r * (a1 + r * (a2 + r * a3));
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.esa.beam.aatsrrecalibration.util.RecalibrationUtils;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters and timers of the recalibration: tiles computed per band, pixels recalibrated
+ * and copied, tiles and pixels passed through as invalid, time spent fetching source tiles and computing,
+ * drift table loads and cache hits, and products skipped by reason. Updates only use atomic counters,
+ * so they can be made from all tile threads.
+ * <p/>
+ * Products and copied pixels are counted as planned when the operator is initialised, whether or not
+ * the target product is ever written, e.g. for a preview or a cancelled run. Copied pixels are those of
+ * bands which reference the source images and are never computed. Products are only counted as
+ * recalibrated by the batch driver, once the target product has been written.
+ * <p/>
+ * The metrics are registered as MBean {@link #OBJECT_NAME}. The batch driver writes a summary at the
+ * end of its run.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class RecalibrationMetrics implements RecalibrationMetricsMBean {
+
+    public static final String OBJECT_NAME = "org.esa.beam.aatsrrecalibration:type=RecalibrationMetrics";
+
+    private static final RecalibrationMetrics INSTANCE = createInstance();
+
+    private final ConcurrentMap<String, AtomicLong> tilesComputedByBand = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> productsSkippedByReason =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong tilesComputed = new AtomicLong();
+    private final AtomicLong tilesFailed = new AtomicLong();
+    private final AtomicLong tilesSkipped = new AtomicLong();
+    private final AtomicLong invalidPixels = new AtomicLong();
+    private final AtomicLong pixelsRecalibrated = new AtomicLong();
+    private final AtomicLong pixelsCopiedPlanned = new AtomicLong();
+    private final AtomicLong sourceFetchNanos = new AtomicLong();
+    private final AtomicLong computeNanos = new AtomicLong();
+    private final AtomicLong driftTableLoads = new AtomicLong();
+    private final AtomicLong driftTableLoadNanos = new AtomicLong();
+    private final AtomicLong driftTableCacheHits = new AtomicLong();
+    private final AtomicLong productsPlanned = new AtomicLong();
+    private final AtomicLong productsRecalibrated = new AtomicLong();
+    private final AtomicLong productsSkipped = new AtomicLong();
+
+    public static RecalibrationMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static RecalibrationMetrics createInstance() {
+        final RecalibrationMetrics metrics = new RecalibrationMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            RecalibrationUtils.info("AATSR recalibration metrics not registered with JMX: " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    /**
+     * This method records a computed tile stack
+     *
+     * @param bandNames        - the bands of the stack
+     * @param pixelsPerBand    - the number of pixels of each tile
+     * @param sourceFetchNanos - time spent fetching the source tiles
+     * @param computeNanos     - time spent computing
+     */
+    public void tileStackComputed(String[] bandNames, long pixelsPerBand, long sourceFetchNanos, long computeNanos) {
+        for (String bandName : bandNames) {
+            getCounter(tilesComputedByBand, bandName).incrementAndGet();
+        }
+        tilesComputed.addAndGet(bandNames.length);
+        pixelsRecalibrated.addAndGet(bandNames.length * pixelsPerBand);
+        this.sourceFetchNanos.addAndGet(sourceFetchNanos);
+        this.computeNanos.addAndGet(computeNanos);
+    }
+
+    public void tileStackFailed(int bandCount) {
+        tilesFailed.addAndGet(bandCount);
+    }
+
+    /**
+     * This method records tiles which were passed through since none of their pixels was measured
+     *
+     * @param tileCount - the number of tiles
+     */
+    public void tilesSkipped(int tileCount) {
+        tilesSkipped.addAndGet(tileCount);
+    }
+
+    /**
+     * This method records invalid pixels which were passed through within computed tiles
+     *
+     * @param pixels - the number of pixels
+     */
+    public void invalidPixelsPassed(long pixels) {
+        invalidPixels.addAndGet(pixels);
+    }
+
+    /**
+     * This method records a product the operator has been initialised to recalibrate
+     *
+     * @param pixelsCopied - the pixels of the bands which reference the source images
+     */
+    public void productPlanned(long pixelsCopied) {
+        productsPlanned.incrementAndGet();
+        pixelsCopiedPlanned.addAndGet(pixelsCopied);
+    }
+
+    public void driftTableLoaded(long nanos) {
+        driftTableLoads.incrementAndGet();
+        driftTableLoadNanos.addAndGet(nanos);
+    }
+
+    public void driftTableCacheHit() {
+        driftTableCacheHits.incrementAndGet();
+    }
+
+    /**
+     * This method records a product whose recalibrated target product has been written
+     */
+    public void productRecalibrated() {
+        productsRecalibrated.incrementAndGet();
+    }
+
+    public void productSkipped(String reason) {
+        productsSkipped.incrementAndGet();
+        getCounter(productsSkippedByReason, reason).incrementAndGet();
+    }
+
+    @Override
+    public long getTilesComputed() {
+        return tilesComputed.get();
+    }
+
+    /**
+     * @return the number of tiles computed, by band name
+     */
+    public Map<String, Long> getTilesComputedByBand() {
+        return toMap(tilesComputedByBand);
+    }
+
+    @Override
+    public long getTilesFailed() {
+        return tilesFailed.get();
+    }
+
+    @Override
+    public long getTilesSkipped() {
+        return tilesSkipped.get();
+    }
+
+    @Override
+    public long getInvalidPixels() {
+        return invalidPixels.get();
+    }
+
+    @Override
+    public long getPixelsRecalibrated() {
+        return pixelsRecalibrated.get();
+    }
+
+    @Override
+    public long getPixelsCopiedPlanned() {
+        return pixelsCopiedPlanned.get();
+    }
+
+    @Override
+    public long getSourceFetchMillis() {
+        return sourceFetchNanos.get() / 1000000L;
+    }
+
+    @Override
+    public long getComputeMillis() {
+        return computeNanos.get() / 1000000L;
+    }
+
+    @Override
+    public long getDriftTableLoads() {
+        return driftTableLoads.get();
+    }
+
+    @Override
+    public long getDriftTableLoadMillis() {
+        return driftTableLoadNanos.get() / 1000000L;
+    }
+
+    @Override
+    public long getDriftTableCacheHits() {
+        return driftTableCacheHits.get();
+    }
+
+    @Override
+    public long getProductsPlanned() {
+        return productsPlanned.get();
+    }
+
+    @Override
+    public long getProductsRecalibrated() {
+        return productsRecalibrated.get();
+    }
+
+    @Override
+    public long getProductsSkipped() {
+        return productsSkipped.get();
+    }
+
+    /**
+     * @return the number of products skipped, by reason
+     */
+    public Map<String, Long> getProductsSkippedByReason() {
+        return toMap(productsSkippedByReason);
+    }
+
+    @Override
+    public String getSummary() {
+        final long fetchMillis = getSourceFetchMillis();
+        final long computeMillis = getComputeMillis();
+        final long tileMillis = fetchMillis + computeMillis;
+        return "AATSR recalibration metrics:\n" +
+               "  products planned:      " + getProductsPlanned() + "\n" +
+               "  products recalibrated: " + getProductsRecalibrated() + "\n" +
+               "  products skipped:      " + getProductsSkipped() + " " + getProductsSkippedByReason() + "\n" +
+               "  tiles computed:        " + getTilesComputed() + " " + getTilesComputedByBand() + "\n" +
+               "  tiles failed:          " + getTilesFailed() + "\n" +
+               "  tiles skipped:         " + getTilesSkipped() + " (no pixel measured)\n" +
+               "  invalid pixels:        " + getInvalidPixels() + " (passed through)\n" +
+               "  pixels recalibrated:   " + getPixelsRecalibrated() + "\n" +
+               "  pixels copied planned: " + getPixelsCopiedPlanned() + "\n" +
+               "  source fetch:          " + fetchMillis + " ms" +
+               (tileMillis > 0 ? " (" + (100 * fetchMillis / tileMillis) + "% of tile time)" : "") + "\n" +
+               "  compute:               " + computeMillis + " ms\n" +
+               "  drift table loads:     " + getDriftTableLoads() + " (" + getDriftTableLoadMillis() + " ms), " +
+               getDriftTableCacheHits() + " cache hits";
+    }
+
+    /**
+     * This method writes the summary to the log
+     */
+    public void logSummary() {
+        RecalibrationUtils.info(getSummary());
+    }
+
+    @Override
+    public void reset() {
+        tilesComputedByBand.clear();
+        productsSkippedByReason.clear();
+        tilesComputed.set(0);
+        tilesFailed.set(0);
+        tilesSkipped.set(0);
+        invalidPixels.set(0);
+        pixelsRecalibrated.set(0);
+        pixelsCopiedPlanned.set(0);
+        sourceFetchNanos.set(0);
+        computeNanos.set(0);
+        driftTableLoads.set(0);
+        driftTableLoadNanos.set(0);
+        driftTableCacheHits.set(0);
+        productsPlanned.set(0);
+        productsRecalibrated.set(0);
+        productsSkipped.set(0);
+    }
+
+    private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            final AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    private static Map<String, Long> toMap(ConcurrentMap<String, AtomicLong> counters) {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,42 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+/**
+ * JMX view of {@link RecalibrationMetrics}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public interface RecalibrationMetricsMBean {
+
+    long getTilesComputed();
+
+    long getTilesFailed();
+
+    long getTilesSkipped();
+
+    long getInvalidPixels();
+
+    long getPixelsRecalibrated();
+
+    long getPixelsCopiedPlanned();
+
+    long getSourceFetchMillis();
+
+    long getComputeMillis();
+
+    long getDriftTableLoads();
+
+    long getDriftTableLoadMillis();
+
+    long getDriftTableCacheHits();
+
+    long getProductsPlanned();
+
+    long getProductsRecalibrated();
+
+    long getProductsSkipped();
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,64 @@
+package org.esa.beam.aatsrrecalibration.ui;
+
+import org.esa.beam.aatsrrecalibration.util.DiagnosticEvent;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticsChannel;
+import org.esa.beam.aatsrrecalibration.util.DiagnosticsListener;
+
+import javax.swing.JDialog;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows the user messages, errors, out of range and failure events of the {@link DiagnosticsChannel}
+ * in non-modal dialogs, so that processing continues while a message is shown.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DiagnosticsMessageDisplay implements DiagnosticsListener {
+
+    private static final String TITLE = "AATSR Recalibration";
+
+    private static boolean installed;
+
+    /**
+     * This method adds the display to the shared channel, once per application
+     */
+    public static synchronized void install() {
+        if (!installed) {
+            DiagnosticsChannel.getInstance().addListener(new DiagnosticsMessageDisplay());
+            installed = true;
+        }
+    }
+
+    @Override
+    public void eventPublished(final DiagnosticEvent event) {
+        final int messageType;
+        switch (event.getType()) {
+            case INFO:
+            case OUT_OF_RANGE:
+                messageType = JOptionPane.INFORMATION_MESSAGE;
+                break;
+            case ERROR:
+            case FAILED:
+                messageType = JOptionPane.ERROR_MESSAGE;
+                break;
+            default:
+                // log messages, skipped products and timings are only logged
+                return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                final String message = event.getProductName() != null ?
+                                       event.getProductName() + ":\n" + event.getMessage() : event.getMessage();
+                final String title = TITLE + (messageType == JOptionPane.ERROR_MESSAGE ?
+                                              " - Error Message" : " - Info Message");
+                JDialog dialog = new JOptionPane(message, messageType).createDialog(null, title);
+                dialog.setModal(false);
+                dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+                dialog.setVisible(true);
+            }
+        });
+    }
+}
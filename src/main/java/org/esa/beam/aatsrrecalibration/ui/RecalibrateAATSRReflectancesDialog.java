@@ -44,7 +44,7 @@ public class RecalibrateAATSRReflectancesDialog extends SingleTargetProductDialo
         super(appContext, title, helpID);
         this.operatorName = operatorName;
         this.targetProductNameSuffix = targetProductNameSuffix;
-        System.setProperty("gpfMode", "GUI");
+        DiagnosticsMessageDisplay.install();
         initialize(operatorName, appContext);
     }
 
@@ -95,6 +95,15 @@ public class RecalibrateAATSRReflectancesDialog extends SingleTargetProductDialo
                                                                  parameterDescriptorFactory);
 
         pc.setDefaultValues();
+        // subsets are made with the product subset dialog, there is no editor for geometries;
+        // drift table comparisons and tile sizes are set with gpt
+        for (String parameter : new String[]{"region", "geoRegion", "sourceBandNames",
+                "comparisonDriftTables", "writeDifferenceBands", "tileWidth", "tileHeight"}) {
+            Property property = pc.getProperty(parameter);
+            if (property != null) {
+                pc.removeProperty(property);
+            }
+        }
         if (panelId != null && panelId.length() > 0) {
             for (Property property : pc.getProperties()) {
                 PropertyDescriptor propertyDescriptor = property.getDescriptor();
@@ -0,0 +1,82 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+/**
+ * A diagnostic event of the recalibration, published through the {@link DiagnosticsChannel}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DiagnosticEvent {
+
+    public enum Type {
+        /**
+         * plain log message
+         */
+        LOG,
+        /**
+         * message for the user
+         */
+        INFO,
+        /**
+         * error message for the user
+         */
+        ERROR,
+        /**
+         * acquisition time outside the drift table
+         */
+        OUT_OF_RANGE,
+        /**
+         * product not recalibrated
+         */
+        SKIPPED,
+        /**
+         * recalibration failed
+         */
+        FAILED,
+        /**
+         * processing time of a product
+         */
+        TIMING
+    }
+
+    private final Type type;
+    private final String productName;
+    private final String message;
+    private final long time;
+
+    /**
+     * @param type        - the event type
+     * @param productName - the product concerned, or null
+     * @param message     - the message
+     */
+    public DiagnosticEvent(Type type, String productName, String message) {
+        this.type = type;
+        this.productName = productName;
+        this.message = message;
+        this.time = System.currentTimeMillis();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the time the event was created, in milliseconds since 1970
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return (type != Type.LOG ? "[" + type + "] " : "") + (productName != null ? productName + ": " : "") + message;
+    }
+}
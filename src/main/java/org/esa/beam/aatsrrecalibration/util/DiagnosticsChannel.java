@@ -0,0 +1,216 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous channel for the diagnostic events of the recalibration. Processing threads publish
+ * events into a bounded queue without ever blocking; if the queue is full, the event is dropped and
+ * counted. A daemon thread delivers the events to the listeners, so a slow console or a dialog
+ * only delays the delivery of further events. The thread is started with the first event and stopped
+ * by {@link #close()}; publishing after close starts it again.
+ * <p/>
+ * The shared channel writes all events to the log.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DiagnosticsChannel {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Logger LOGGER = Logger.getLogger("aatsrrecalibration");
+    private static final DiagnosticsChannel INSTANCE = createInstance();
+
+    private final BlockingQueue<DiagnosticEvent> queue;
+    private final List<DiagnosticsListener> listeners = new CopyOnWriteArrayList<DiagnosticsListener>();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Object dispatcherLock = new Object();
+    private volatile Dispatcher dispatcher;
+
+    public static DiagnosticsChannel getInstance() {
+        return INSTANCE;
+    }
+
+    private static DiagnosticsChannel createInstance() {
+        DiagnosticsChannel channel = new DiagnosticsChannel(DEFAULT_CAPACITY);
+        channel.addListener(new DiagnosticsListener() {
+            @Override
+            public void eventPublished(DiagnosticEvent event) {
+                final Level level = event.getType() == DiagnosticEvent.Type.ERROR ||
+                                    event.getType() == DiagnosticEvent.Type.FAILED ? Level.WARNING : Level.INFO;
+                LOGGER.log(level, event.toString());
+            }
+        });
+        return channel;
+    }
+
+    /**
+     * @param capacity - the maximum number of events waiting for delivery
+     */
+    public DiagnosticsChannel(int capacity) {
+        queue = new ArrayBlockingQueue<DiagnosticEvent>(capacity);
+    }
+
+    public void addListener(DiagnosticsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DiagnosticsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * This method publishes an event without blocking
+     *
+     * @param event - the event
+     *
+     * @return false if the queue was full and the event has been dropped
+     */
+    public boolean publish(DiagnosticEvent event) {
+        publishedCount.incrementAndGet();
+        if (!queue.offer(event)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (dispatcher == null) {
+            startDispatcher();
+        }
+        return true;
+    }
+
+    /**
+     * This method publishes an event without blocking
+     *
+     * @param type        - the event type
+     * @param productName - the product concerned, or null
+     * @param message     - the message
+     *
+     * @return false if the queue was full and the event has been dropped
+     */
+    public boolean publish(DiagnosticEvent.Type type, String productName, String message) {
+        return publish(new DiagnosticEvent(type, productName, message));
+    }
+
+    /**
+     * This method waits until all events published so far have been delivered, e.g. before the JVM exits
+     *
+     * @param timeoutMillis - the maximum time to wait
+     *
+     * @return true if all events have been delivered
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        final long target = publishedCount.get();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (deliveredCount.get() + droppedCount.get() < target) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * This method stops the delivery thread after the event it is currently delivering, and delivers the
+     * events still waiting in the queue in the calling thread. Events published during or after close are
+     * delivered by a new thread.
+     */
+    public void close() {
+        final Dispatcher stopped;
+        synchronized (dispatcherLock) {
+            stopped = dispatcher;
+            dispatcher = null;
+        }
+        if (stopped != null) {
+            stopped.shutdown();
+            boolean interrupted = false;
+            while (stopped.isAlive()) {
+                try {
+                    stopped.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        DiagnosticEvent event;
+        while ((event = queue.poll()) != null) {
+            deliver(event);
+        }
+    }
+
+    /**
+     * @return true if the delivery thread is running
+     */
+    public boolean isDispatching() {
+        final Dispatcher current = dispatcher;
+        return current != null && current.isAlive();
+    }
+
+    private void startDispatcher() {
+        synchronized (dispatcherLock) {
+            if (dispatcher == null) {
+                dispatcher = new Dispatcher();
+                dispatcher.start();
+            }
+        }
+    }
+
+    private void deliver(DiagnosticEvent event) {
+        for (DiagnosticsListener listener : listeners) {
+            try {
+                listener.eventPublished(event);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Diagnostics listener failed: " + e.getMessage(), e);
+            }
+        }
+        deliveredCount.incrementAndGet();
+    }
+
+    private class Dispatcher extends Thread {
+
+        private volatile boolean stopped;
+
+        Dispatcher() {
+            super("AATSR recalibration diagnostics");
+            setDaemon(true);
+        }
+
+        void shutdown() {
+            stopped = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                final DiagnosticEvent event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                deliver(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+/**
+ * Receives the events of the {@link DiagnosticsChannel}. Listeners are called on the dispatcher
+ * thread of the channel, one event after the other.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public interface DiagnosticsListener {
+
+    void eventPublished(DiagnosticEvent event);
+}
@@ -1,37 +1,39 @@
 package org.esa.beam.aatsrrecalibration.util;
 
-import javax.swing.JOptionPane;
-
 /**
+ * Messages of the recalibration. All messages are published through the {@link DiagnosticsChannel},
+ * so the calling thread never waits for a console or a dialog.
+ *
  * @author Olaf Danne
  * @version $Revision: $ $Date:  $
  */
 public class RecalibrationUtils {
 
-    private static java.util.logging.Logger logger = java.util.logging.Logger.getLogger("aatsrrecalibration");
-
+    /**
+     * This method publishes a message for the user, which is also shown in the GUI
+     *
+     * @param msg - the message
+     */
     public static void logInfoMessage(String msg) {
-            if (System.getProperty("gpfMode") != null && System.getProperty("gpfMode").equals("GUI")) {
-                JOptionPane.showOptionDialog(null, msg, "AATSR Recalibration - Info Message", JOptionPane.DEFAULT_OPTION,
-                                             JOptionPane.INFORMATION_MESSAGE, null, null, null);
-            } else {
-                info(msg);
-            }
-        }
-
-        public static void logErrorMessage(String msg) {
-            if (System.getProperty("gpfMode") != null && System.getProperty("gpfMode").equals("GUI")) {
-                JOptionPane.showOptionDialog(null, msg, "AATSR Recalibration - Error Message", JOptionPane.DEFAULT_OPTION,
-                                             JOptionPane.ERROR_MESSAGE, null, null, null);
-            } else {
-                info(msg);
-            }
-        }
+        DiagnosticsChannel.getInstance().publish(DiagnosticEvent.Type.INFO, null, msg);
+    }
 
+    /**
+     * This method publishes an error message for the user, which is also shown in the GUI
+     *
+     * @param msg - the message
+     */
+    public static void logErrorMessage(String msg) {
+        DiagnosticsChannel.getInstance().publish(DiagnosticEvent.Type.ERROR, null, msg);
+    }
 
+    /**
+     * This method publishes a log message
+     *
+     * @param msg - the message
+     */
     public static void info(final String msg) {
-        logger.info(msg);
-        System.out.println(msg);
+        DiagnosticsChannel.getInstance().publish(DiagnosticEvent.Type.LOG, null, msg);
     }
 
 }
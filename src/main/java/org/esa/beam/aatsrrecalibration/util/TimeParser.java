@@ -0,0 +1,194 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+/**
+ * Parser for the time strings used in AATSR metadata, drift tables and auxiliary file names.
+ * Works on the characters directly, so it does not allocate and is safe to use from any thread.
+ * All times are UTC.
+ * <p/>
+ * Supported formats:
+ * - dd-MMM-yyyy hh:mm:ss (e.g. 01-MAR-2002 00:00:00)
+ * - dd-mm-yyyy hh:mm:ss (e.g. 01-03-2002 00:00:00)
+ * - yyyyMMdd_hhmmss (e.g. 20020301_000000, as used in Envisat file names)
+ * The time of day is optional in the first two formats.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class TimeParser {
+
+    public static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    private TimeParser() {
+    }
+
+    /**
+     * This method provides the time in milliseconds since 1970-01-01 from a given time string.
+     *
+     * @param timeString - the time string (dd-MMM-yyyy hh:mm:ss or dd-mm-yyyy hh:mm:ss)
+     *
+     * @return the time in millis
+     *
+     * @throws NumberFormatException    if a field cannot be parsed
+     * @throws IndexOutOfBoundsException if the string is too short for the format
+     *                                   (StringIndexOutOfBoundsException for a String)
+     */
+    public static long parseMillis(CharSequence timeString) {
+        final int timeOffset = Character.isDigit(timeString.charAt(3)) ? 11 : 12;
+        long millis = parseEpochDay(timeString) * MILLIS_PER_DAY;
+        if (timeString.length() >= timeOffset + 8) {
+            millis += parseTimeOfDayMillis(timeString, timeOffset, timeOffset + 3, timeOffset + 6);
+        }
+        return millis;
+    }
+
+    /**
+     * This method provides the day since 1970-01-01 from a given time string. The time of day is ignored.
+     *
+     * @param timeString - the time string (dd-MMM-yyyy hh:mm:ss or dd-mm-yyyy hh:mm:ss)
+     *
+     * @return the epoch day
+     *
+     * @throws NumberFormatException    if a field cannot be parsed
+     * @throws IndexOutOfBoundsException if the string is too short for the format
+     *                                   (StringIndexOutOfBoundsException for a String)
+     */
+    public static long parseEpochDay(CharSequence timeString) {
+        final int year;
+        final int month;
+        if (Character.isDigit(timeString.charAt(3))) {
+            month = parseDigits(timeString, 3, 2);
+            year = parseDigits(timeString, 6, 4);
+        } else {
+            month = parseMonth(timeString, 3);
+            year = parseDigits(timeString, 7, 4);
+        }
+        final int day = parseDigits(timeString, 0, 2);
+        return toEpochDay(year, month, day);
+    }
+
+    /**
+     * This method provides the time in milliseconds since 1970-01-01 from a compact time as used in Envisat
+     * file names, e.g. ATS_VC1_AXVIEC20080607_043326_...
+     *
+     * @param s      - the string containing the time
+     * @param offset - position of the time (yyyyMMdd_hhmmss) in the string
+     *
+     * @return the time in millis
+     *
+     * @throws NumberFormatException    if a field cannot be parsed
+     * @throws IndexOutOfBoundsException if the string is too short for the format
+     *                                   (StringIndexOutOfBoundsException for a String)
+     */
+    public static long parseCompactMillis(CharSequence s, int offset) {
+        final int year = parseDigits(s, offset, 4);
+        final int month = parseDigits(s, offset + 4, 2);
+        final int day = parseDigits(s, offset + 6, 2);
+        return toEpochDay(year, month, day) * MILLIS_PER_DAY +
+               parseTimeOfDayMillis(s, offset + 9, offset + 11, offset + 13);
+    }
+
+    /**
+     * This method converts a calendar date into days since 1970-01-01 (proleptic Gregorian calendar).
+     * Days beyond the end of the month roll over into the next month, as in a lenient calendar.
+     *
+     * @param year  - the year
+     * @param month - the month (1-12)
+     * @param day   - the day of month
+     *
+     * @return the epoch day
+     */
+    public static long toEpochDay(int year, int month, int day) {
+        if (month < 1 || month > 12) {
+            throw new NumberFormatException("Invalid month: " + month);
+        }
+        // days from civil, counting years from March so that the leap day is the last day of a year
+        final int y = month <= 2 ? year - 1 : year;
+        final int era = (y >= 0 ? y : y - 399) / 400;
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468L;
+    }
+
+    private static long parseTimeOfDayMillis(CharSequence s, int hourOffset, int minuteOffset, int secondOffset) {
+        final int hour = parseDigits(s, hourOffset, 2);
+        final int minute = parseDigits(s, minuteOffset, 2);
+        final int second = parseDigits(s, secondOffset, 2);
+        return ((hour * 60L + minute) * 60L + second) * 1000L;
+    }
+
+    private static int parseDigits(CharSequence s, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("For input string: \"" + s + "\"");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int parseMonth(CharSequence s, int offset) {
+        final char c0 = s.charAt(offset);
+        final char c1 = s.charAt(offset + 1);
+        final char c2 = s.charAt(offset + 2);
+        switch (c0) {
+            case 'J':
+                if (c1 == 'A' && c2 == 'N') {
+                    return 1;
+                }
+                if (c1 == 'U' && c2 == 'N') {
+                    return 6;
+                }
+                if (c1 == 'U' && c2 == 'L') {
+                    return 7;
+                }
+                break;
+            case 'F':
+                if (c1 == 'E' && c2 == 'B') {
+                    return 2;
+                }
+                break;
+            case 'M':
+                if (c1 == 'A' && c2 == 'R') {
+                    return 3;
+                }
+                if (c1 == 'A' && c2 == 'Y') {
+                    return 5;
+                }
+                break;
+            case 'A':
+                if (c1 == 'P' && c2 == 'R') {
+                    return 4;
+                }
+                if (c1 == 'U' && c2 == 'G') {
+                    return 8;
+                }
+                break;
+            case 'S':
+                if (c1 == 'E' && c2 == 'P') {
+                    return 9;
+                }
+                break;
+            case 'O':
+                if (c1 == 'C' && c2 == 'T') {
+                    return 10;
+                }
+                break;
+            case 'N':
+                if (c1 == 'O' && c2 == 'V') {
+                    return 11;
+                }
+                break;
+            case 'D':
+                if (c1 == 'E' && c2 == 'C') {
+                    return 12;
+                }
+                break;
+            default:
+                break;
+        }
+        throw new NumberFormatException("Invalid month in: \"" + s + "\"");
+    }
+}
@@ -0,0 +1,181 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import org.esa.beam.aatsrrecalibration.operators.RecalibrateAATSRReflectancesOp;
+import org.esa.beam.aatsrrecalibration.operators.Recalibration;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrationContext;
+import org.esa.beam.aatsrrecalibration.operators.RecalibrationKernel;
+import org.esa.beam.aatsrrecalibration.util.SyntheticProductGenerator;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for class {@link N1RecalibrationPatcher}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class N1RecalibrationPatcherTest {
+
+    private static final String VC1 = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
+    private static final String GC1 = "ATS_GC1_AXVIEC20070720_093834_20020301_000000_20200101_000000";
+    private static final int NUM_DSR = 10;
+    private static final int TRAILER_SIZE = 100;
+    // the nadir confid words MDS follows the 550nm nadir MDS, same record layout
+    private static final int CONFID_OFFSET = N1TriageScannerTest.MDS_OFFSET + NUM_DSR * N1TriageScannerTest.DSR_SIZE;
+    private static final int ABSENT = 0x008;
+    private static final int COSMETIC = 0x002;
+
+    @Test
+    public void testPatch() throws IOException {
+        File source = writeN1File("ATS_TOA_1PNPDE20080403_073445.N1", "03-APR-2008 07:34:45.123456");
+        File target = new File(source.getParentFile(), "recalibrated.N1");
+        target.deleteOnExit();
+
+        N1RecalibrationPatcher patcher = new N1RecalibrationPatcher(null);
+        assertNull(patcher.patch(source, target));
+        assertEquals(source.length(), target.length());
+        assertEquals("YES", N1Header.read(target).getMph().get("RECALIBRATED"));
+
+        Recalibration recalibration = new Recalibration(false, null);
+        recalibration.readDriftTable();
+        RecalibrationKernel kernel = new RecalibrationContext(
+                recalibration, "03-APR-2008 07:34:45", VC1, GC1,
+                Collections.singletonMap(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME,
+                                         Recalibration.CHANNEL550)).getKernel(
+                EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME);
+
+        byte[] sourceBytes = readBytes(source);
+        byte[] targetBytes = readBytes(target);
+        final int pixelOffset = N1TriageScannerTest.DSR_SIZE - 2 * N1RecalibrationPatcher.SCENE_WIDTH;
+        int keptInvalidPixels = 0;
+        for (int record = 0; record < NUM_DSR; record++) {
+            final int recordStart = N1TriageScannerTest.MDS_OFFSET + record * N1TriageScannerTest.DSR_SIZE;
+            final int confidRecordStart = CONFID_OFFSET + record * N1TriageScannerTest.DSR_SIZE;
+            for (int i = 0; i < pixelOffset; i++) {
+                assertEquals(sourceBytes[recordStart + i], targetBytes[recordStart + i]);
+            }
+            for (int x = 0; x < N1RecalibrationPatcher.SCENE_WIDTH; x++) {
+                final short raw = getShort(sourceBytes, recordStart + pixelOffset + 2 * x);
+                final short patched = getShort(targetBytes, recordStart + pixelOffset + 2 * x);
+                final int flags = getShort(sourceBytes, confidRecordStart + pixelOffset + 2 * x);
+                if (raw < 0) {
+                    assertEquals(raw, patched);
+                } else if ((flags & RecalibrateAATSRReflectancesOp.INVALID_CONFID_FLAGS) != 0) {
+                    assertEquals(raw, patched);
+                    keptInvalidPixels++;
+                } else {
+                    assertEquals(kernel.apply(raw * 0.01) / 0.01, patched, 1.0);
+                }
+            }
+        }
+        assertTrue(keptInvalidPixels > 0);
+        // the confid words and everything after them are copied unchanged
+        for (int i = CONFID_OFFSET; i < targetBytes.length; i++) {
+            assertEquals(sourceBytes[i], targetBytes[i]);
+        }
+
+        File again = new File(source.getParentFile(), "again.N1");
+        assertEquals(RecalibrateAATSRReflectancesOp.SKIPPED_ALREADY_RECALIBRATED, patcher.patch(target, again));
+        assertFalse(again.exists());
+    }
+
+    @Test
+    public void testPatchedFileIsSkippedByOperator() throws IOException {
+        File source = writeN1File("ATS_TOA_1PNPDE20080403_073445.N1", "03-APR-2008 07:34:45.123456");
+        File target = new File(source.getParentFile(), "ATS_TOA_1PNPDE20080403_073445_recalibrated.N1");
+        target.deleteOnExit();
+        assertNull(new N1RecalibrationPatcher(null).patch(source, target));
+
+        // as opened by the product reader: the MPH metadata has no RECALIBRATED attribute
+        Product patchedProduct = new SyntheticProductGenerator(64, 32).createProduct();
+        assertNull(patchedProduct.getMetadataRoot().getElement("MPH").getAttribute("RECALIBRATED"));
+        patchedProduct.setFileLocation(target);
+        assertEquals(RecalibrateAATSRReflectancesOp.SKIPPED_ALREADY_RECALIBRATED, getSkipReason(patchedProduct));
+
+        Product sourceProduct = new SyntheticProductGenerator(64, 32).createProduct();
+        sourceProduct.setFileLocation(source);
+        assertNull(getSkipReason(sourceProduct));
+    }
+
+    @Test
+    public void testPatchOutsideDriftTable() throws IOException {
+        File source = writeN1File("ATS_TOA_1PNPDE20110403_073445.N1", "03-APR-2011 07:34:45.123456");
+        File target = new File(source.getParentFile(), "recalibrated.N1");
+
+        N1RecalibrationPatcher patcher = new N1RecalibrationPatcher(null);
+        assertEquals(RecalibrateAATSRReflectancesOp.SKIPPED_OUT_OF_RANGE, patcher.patch(source, target));
+        assertFalse(target.exists());
+    }
+
+    private static File writeN1File(String productName, String sensingStart) throws IOException {
+        final int dsrSize = N1TriageScannerTest.DSR_SIZE;
+        File file = N1TriageScannerTest.writeN1Header(
+                productName, sensingStart, "", VC1, GC1,
+                N1TriageScannerTest.dsd("NADIR_VIEW_CONFID_WORDS_MDS", "M", "", CONFID_OFFSET, NUM_DSR * dsrSize,
+                                        NUM_DSR, dsrSize));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(CONFID_OFFSET + NUM_DSR * dsrSize + TRAILER_SIZE);
+            raf.seek(N1TriageScannerTest.MDS_OFFSET);
+            for (int record = 0; record < NUM_DSR; record++) {
+                writeRecordHeader(raf, record);
+                for (int x = 0; x < N1RecalibrationPatcher.SCENE_WIDTH; x++) {
+                    // exception codes, zero and reflectances up to 100%
+                    raf.writeShort(x < 4 ? -1 - x : (x * 97 + record * 13) % 10001);
+                }
+            }
+            for (int record = 0; record < NUM_DSR; record++) {
+                writeRecordHeader(raf, record);
+                for (int x = 0; x < N1RecalibrationPatcher.SCENE_WIDTH; x++) {
+                    // absent pixels are kept, cosmetic fills are recalibrated
+                    raf.writeShort((x % 5 == 0 ? ABSENT : 0) | (x % 3 == 0 ? COSMETIC : 0));
+                }
+            }
+            for (int i = 0; i < TRAILER_SIZE; i++) {
+                raf.writeByte(i);
+            }
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    private static String getSkipReason(Product sourceProduct) {
+        RecalibrateAATSRReflectancesOp op = new RecalibrateAATSRReflectancesOp();
+        op.setSourceProduct(sourceProduct);
+        MetadataElement mph = op.getTargetProduct().getMetadataRoot().getElement("MPH");
+        return mph.getAttributeString(RecalibrateAATSRReflectancesOp.RECALIBRATION_SKIPPED, null);
+    }
+
+    private static void writeRecordHeader(RandomAccessFile raf, int record) throws IOException {
+        // time, quality, spare, scan y
+        for (int i = 0; i < 16; i++) {
+            raf.writeByte(i + 1);
+        }
+        raf.writeInt(record);
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static short getShort(byte[] bytes, int index) {
+        return (short) (((bytes[index] & 0xff) << 8) | (bytes[index + 1] & 0xff));
+    }
+}
@@ -0,0 +1,126 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import org.esa.beam.aatsrrecalibration.operators.Recalibration;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for classes {@link N1Header} and {@link N1TriageScanner}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class N1TriageScannerTest {
+
+    private static final String VC1 = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
+    private static final String GC1 = "ATS_GC1_AXVIEC20070720_093834_20020301_000000_20200101_000000";
+
+    // the 550nm nadir MDS written by writeN1Header: 10 records of time, quality, spare, scan y and 512 pixels
+    static final int MDS_OFFSET = 4096;
+    static final int DSR_SIZE = 12 + 1 + 3 + 4 + 2 * 512;
+
+    @Test
+    public void testReadHeader() throws IOException {
+        File file = writeN1Header("ATS_TOA_1PNPDE20080403_073445.N1", "03-APR-2008 07:34:45.123456", "", VC1, GC1);
+        N1Header header = N1Header.read(file);
+        assertEquals("ATS_TOA_1PNPDE20080403_073445.N1", header.getProductName());
+        assertEquals("03-APR-2008 07:34:45.123456", header.getSensingStart());
+        assertEquals(3, header.getDsds().size());
+        assertEquals(VC1, header.getDsdFileName("ATS_VC1_"));
+        assertEquals(GC1, header.getDsdFileName("ATS_GC1_"));
+        assertEquals(MDS_OFFSET, N1Header.parseLong(header.getDsd("550_NM_NADIR_TOA_MDS"), "DS_OFFSET"));
+    }
+
+    @Test
+    public void testClassify() throws IOException, InterruptedException {
+        File recalibrate = writeN1Header("ATS_TOA_1PNPDE20080403_073445.N1", "03-APR-2008 07:34:45.123456", "",
+                                         VC1, GC1);
+        File passThrough = writeN1Header("ATS_TOA_1PNPDE20110403_073445.N1", "03-APR-2011 07:34:45.123456", "",
+                                         VC1, GC1);
+        File recalibrated = writeN1Header("ATS_TOA_1PNPDE20080404_073445.N1", "04-APR-2008 07:34:45.123456",
+                                          "RECALIBRATED=\"YES\"\n", VC1, GC1);
+        File noAatsr = writeN1Header("MER_RR__1PNPDE20080403_073445.N1", "03-APR-2008 07:34:45.123456", "",
+                                     VC1, GC1);
+        File invalid = File.createTempFile("invalid", ".N1");
+        invalid.deleteOnExit();
+
+        N1TriageScanner scanner = new N1TriageScanner(null);
+        scanner.setThreadCount(2);
+        List<N1TriageScanner.Result> results =
+                scanner.scan(Arrays.asList(recalibrate, passThrough, recalibrated, noAatsr, invalid));
+
+        assertEquals(N1TriageScanner.Decision.RECALIBRATE, results.get(0).getDecision());
+        assertEquals(Recalibration.THIN_FILM_DRIFT_CORRECTION, results.get(0).getRegime());
+        assertEquals("03-APR-2008 07:34:45", results.get(0).getSensingStart());
+        assertFalse(results.get(0).isNonlinearGc1());
+        assertEquals(N1TriageScanner.Decision.PASS_THROUGH, results.get(1).getDecision());
+        assertEquals(N1TriageScanner.Decision.SKIP, results.get(2).getDecision());
+        assertEquals(N1TriageScanner.Decision.SKIP, results.get(3).getDecision());
+        assertEquals(N1TriageScanner.Decision.INVALID, results.get(4).getDecision());
+    }
+
+    static File writeN1Header(String productName, String sensingStart, String extraMph,
+                              String vc1FileName, String gc1FileName, String... extraDsds) throws IOException {
+        final List<String> dsds = new ArrayList<String>(Arrays.asList(
+                dsd("550_NM_NADIR_TOA_MDS", "M", "", MDS_OFFSET, 10 * DSR_SIZE, 10, DSR_SIZE),
+                dsd("VISIBLE_CALIBRATION_FILE", "R", vc1FileName, 0, 0, 0, 0),
+                dsd("GENERAL_CALIBRATION_FILE", "R", gc1FileName, 0, 0, 0, 0)));
+        dsds.addAll(Arrays.asList(extraDsds));
+        final String sphDescriptor = "SPH_DESCRIPTOR=\"AATSR TOA L1B\"\n";
+        final int sphSize = sphDescriptor.length() + dsds.size() * 280;
+
+        StringBuilder mph = new StringBuilder();
+        mph.append("PRODUCT=\"").append(productName).append("\"\n");
+        mph.append("SENSING_START=\"").append(sensingStart).append("\"\n");
+        mph.append(String.format("SPH_SIZE=+%010d<bytes>\n", sphSize));
+        mph.append(String.format("NUM_DSD=+%010d\n", dsds.size()));
+        mph.append("DSD_SIZE=+0000000280<bytes>\n");
+        mph.append(extraMph);
+        StringBuilder header = new StringBuilder(pad(mph.toString(), N1Header.MPH_SIZE));
+        header.append(sphDescriptor);
+        for (String dsd : dsds) {
+            header.append(dsd);
+        }
+
+        File file = new File(createTempDir(), productName);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(header.toString().getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static String dsd(String name, String type, String fileName, long offset, long size, long numDsr,
+                              long dsrSize) {
+        return pad(String.format("DS_NAME=\"%-28s\"\nDS_TYPE=%s\nFILENAME=\"%-62s\"\n" +
+                                 "DS_OFFSET=+%020d<bytes>\nDS_SIZE=+%020d<bytes>\nNUM_DSR=+%010d\n" +
+                                 "DSR_SIZE=+%010d<bytes>\n",
+                                 name, type, fileName, offset, size, numDsr, dsrSize), 280);
+    }
+
+    private static String pad(String text, int length) {
+        StringBuilder padded = new StringBuilder(text);
+        while (padded.length() < length - 1) {
+            padded.append(' ');
+        }
+        return padded.append('\n').toString();
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("n1-header", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+}
@@ -0,0 +1,201 @@
+package org.esa.beam.aatsrrecalibration.batch;
+
+import org.esa.beam.aatsrrecalibration.util.SyntheticProductGenerator;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for class {@link RecalibrationBatch}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class RecalibrationBatchTest {
+
+    private static final int PRODUCT_WIDTH = 64;
+    private static final int PRODUCT_HEIGHT = 32;
+
+    @Test
+    public void testCollectProductFiles() throws IOException {
+        File dir = createTempDir();
+        File n1 = createFile(dir, "ATS_TOA_1PNPDE20080403_073445.N1");
+        File dim = createFile(dir, "ATS_TOA_1PNPDE20080404_073445.dim");
+        createFile(dir, "readme.txt");
+        File listed = createFile(createTempDir(), "ATS_TOA_1PNPDE20080405_073445.N1");
+        File listFile = createFile(dir, "products.lst");
+        FileWriter writer = new FileWriter(listFile);
+        try {
+            writer.write("# products\n\n" + listed.getPath() + "\n");
+        } finally {
+            writer.close();
+        }
+
+        List<File> files = RecalibrationBatch.collectProductFiles(
+                Arrays.asList(dir.getPath(), "@" + listFile.getPath()));
+        assertEquals(Arrays.asList(n1, dim, listed), files);
+
+        try {
+            RecalibrationBatch.collectProductFiles(Arrays.asList(new File(dir, "missing.N1").getPath()));
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testResultCsvLine() {
+        BatchResult result = new BatchResult(new File("ATS_TOA_1PNPDE20080403_073445.N1"));
+        result.setSize(512, 2000);
+        result.setReadMillis(100);
+        result.setWaitMillis(20);
+        result.setProcessMillis(1024);
+        result.setStatus(BatchResult.Status.FAILED, "Failed to read \"DSD.31\", product corrupt");
+        assertEquals("ATS_TOA_1PNPDE20080403_073445.N1,FAILED,512,2000,100,20,1024,1144,1.000,," +
+                     "\"Failed to read \"\"DSD.31\"\", product corrupt\"", result.toCsvLine());
+    }
+
+    @Test
+    public void testSkipFromHeader() throws IOException, InterruptedException {
+        final String vc1 = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
+        final String gc1 = "ATS_GC1_AXVIEC20070720_093834_20020301_000000_20200101_000000";
+        File recalibrated = N1TriageScannerTest.writeN1Header("ATS_TOA_1PNPDE20080404_073445.N1",
+                                                              "04-APR-2008 07:34:45.123456",
+                                                              "RECALIBRATED=\"YES\"\n", vc1, gc1);
+        File outsideTable = N1TriageScannerTest.writeN1Header("ATS_TOA_1PNPDE20110403_073445.N1",
+                                                              "03-APR-2011 07:34:45.123456", "", vc1, gc1);
+        File outputDir = createTempDir();
+
+        RecalibrationBatch batch = new RecalibrationBatch(outputDir);
+        batch.setWorkerCount(2);
+        List<BatchResult> results = batch.run(Arrays.asList(recalibrated, outsideTable));
+
+        assertEquals(2, results.size());
+        assertEquals(BatchResult.Status.SKIPPED, results.get(0).getStatus());
+        assertEquals("already recalibrated", results.get(0).getMessage());
+        assertEquals(BatchResult.Status.SKIPPED, results.get(1).getStatus());
+        assertEquals("acquisition time outside drift table", results.get(1).getMessage());
+        assertEquals(0, outputDir.list().length);
+    }
+
+    @Test
+    public void testRunSyntheticProducts() throws IOException, InterruptedException {
+        File inputDir = createTempDir();
+        File valid = new File(inputDir, "ATS_TOA_1PNPDE20080403_073445.dim");
+        new SyntheticProductGenerator(PRODUCT_WIDTH, PRODUCT_HEIGHT).writeProduct(valid).dispose();
+        File recalibrated = new File(inputDir, "ATS_TOA_1PNPDE20080404_073445.dim");
+        new SyntheticProductGenerator(PRODUCT_WIDTH, PRODUCT_HEIGHT).setRecalibrated(true)
+                .writeProduct(recalibrated).dispose();
+        File corrupt = createFile(inputDir, "ATS_TOA_1PNPDE20080405_073445.dim");
+        FileWriter writer = new FileWriter(corrupt);
+        try {
+            writer.write("no DIMAP header");
+        } finally {
+            writer.close();
+        }
+        File outputDir = createTempDir();
+
+        RecalibrationBatch batch = new RecalibrationBatch(outputDir);
+        batch.setWorkerCount(2);
+        List<BatchResult> results = batch.run(Arrays.asList(valid, recalibrated, corrupt));
+
+        assertEquals(3, results.size());
+        assertEquals(BatchResult.Status.RECALIBRATED, results.get(0).getStatus());
+        assertEquals(new File(outputDir, valid.getName()), results.get(0).getOutputFile());
+        assertTrue(results.get(0).getOutputFile().isFile());
+        assertEquals(PRODUCT_WIDTH, results.get(0).getWidth());
+        assertEquals(PRODUCT_HEIGHT, results.get(0).getHeight());
+        assertEquals(BatchResult.Status.SKIPPED, results.get(1).getStatus());
+        assertEquals("already recalibrated", results.get(1).getMessage());
+        assertNull(results.get(1).getOutputFile());
+        assertEquals(0, results.get(1).getWaitMillis());
+        assertEquals(BatchResult.Status.FAILED, results.get(2).getStatus());
+        assertNull(results.get(2).getOutputFile());
+        assertFalse(new File(outputDir, recalibrated.getName()).exists());
+        assertFalse(new File(outputDir, corrupt.getName()).exists());
+    }
+
+    @Test
+    public void testProcessProductReleasesMemoryBudget() throws IOException, InterruptedException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        File inputDir = createTempDir();
+        File valid = new File(inputDir, "ATS_TOA_1PNPDE20080403_073445.dim");
+        new SyntheticProductGenerator(PRODUCT_WIDTH, PRODUCT_HEIGHT).writeProduct(valid).dispose();
+        File recalibrated = new File(inputDir, "ATS_TOA_1PNPDE20080404_073445.dim");
+        new SyntheticProductGenerator(PRODUCT_WIDTH, PRODUCT_HEIGHT).setRecalibrated(true)
+                .writeProduct(recalibrated).dispose();
+        File missing = new File(inputDir, "ATS_TOA_1PNPDE20080405_073445.dim");
+
+        RecalibrationBatch batch = new RecalibrationBatch(createTempDir());
+        batch.setMemoryBudgetMB(16);
+        Semaphore memoryBudget = new Semaphore(16);
+        assertEquals(BatchResult.Status.RECALIBRATED, batch.processProduct(valid, memoryBudget).getStatus());
+        assertEquals(16, memoryBudget.availablePermits());
+        assertEquals(BatchResult.Status.SKIPPED, batch.processProduct(recalibrated, memoryBudget).getStatus());
+        assertEquals(16, memoryBudget.availablePermits());
+        assertEquals(BatchResult.Status.FAILED, batch.processProduct(missing, memoryBudget).getStatus());
+        assertEquals(16, memoryBudget.availablePermits());
+
+        // skipped products need no memory
+        Semaphore exhausted = new Semaphore(0);
+        assertEquals(BatchResult.Status.SKIPPED, batch.processProduct(recalibrated, exhausted).getStatus());
+        assertEquals(0, exhausted.availablePermits());
+    }
+
+    @Test
+    public void testProcessProductInterruptedWhileWaitingForMemory() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final File valid = new File(createTempDir(), "ATS_TOA_1PNPDE20080403_073445.dim");
+        new SyntheticProductGenerator(PRODUCT_WIDTH, PRODUCT_HEIGHT).writeProduct(valid).dispose();
+        final File outputDir = createTempDir();
+        final RecalibrationBatch batch = new RecalibrationBatch(outputDir);
+        final Semaphore exhausted = new Semaphore(0);
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    batch.processProduct(valid, exhausted);
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        };
+        worker.start();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!exhausted.hasQueuedThreads() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(exhausted.hasQueuedThreads());
+        worker.interrupt();
+        worker.join(10000);
+
+        assertFalse(worker.isAlive());
+        assertTrue(thrown.get() instanceof InterruptedException);
+        assertEquals(0, exhausted.availablePermits());
+        assertEquals(0, outputDir.list().length);
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("recalibration-batch", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static File createFile(File dir, String name) throws IOException {
+        File file = new File(dir, name);
+        assertTrue(file.createNewFile());
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -1,9 +1,31 @@
 package org.esa.beam.aatsrrecalibration.operators;
 
+import org.esa.beam.aatsrrecalibration.util.SyntheticProductGenerator;
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.OperatorException;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.ObjectName;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -18,6 +40,9 @@ public class RecalibrateAATSRReflectancesTest {
     private String gc1Filename = "ATS_GC1_AXVIEC20070720_093834_20020301_000000_20200101_000000";
     private String vc1Filename = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
 
+    private static final int SUBSET_SCENE_WIDTH = 512;
+    private static final int SUBSET_SCENE_HEIGHT = 200;
+
     Recalibration recalibration = new Recalibration(false, null);
 
     @Before
@@ -59,6 +84,21 @@ public class RecalibrateAATSRReflectancesTest {
         assertEquals(2, index);
     }
 
+    @Test
+    public void testSyntheticProductDriftCorrectionRegimes() {
+        assertEquals(0, recalibration.getRemoveDriftCorrectionIndex(
+                SyntheticProductGenerator.DriftCorrectionRegime.NONE.getVc1FileName()));
+        assertEquals(1, recalibration.getRemoveDriftCorrectionIndex(
+                SyntheticProductGenerator.DriftCorrectionRegime.EXPONENTIAL.getVc1FileName()));
+        assertEquals(2, recalibration.getRemoveDriftCorrectionIndex(
+                SyntheticProductGenerator.DriftCorrectionRegime.THIN_FILM.getVc1FileName()));
+        assertEquals(0, recalibration.getRemoveDriftCorrectionIndex(
+                SyntheticProductGenerator.DriftCorrectionRegime.NO_CORRECTION_GAP_2010.getVc1FileName()));
+
+        assertTrue(recalibration.isV16NonlinearityCorrectionRequired(SyntheticProductGenerator.NONLINEAR_GC1_FILE_NAME));
+        assertFalse(recalibration.isV16NonlinearityCorrectionRequired(SyntheticProductGenerator.GC1_FILE_NAME));
+    }
+
     @Test
     public void testGetV16NonlinearityCorrectedReflectance() {
         double reflIn = 40.0;
@@ -109,6 +149,129 @@ public class RecalibrateAATSRReflectancesTest {
         assertEquals(true, reflIn - reflOut < 2.0);
     }
 
+    @Test
+    public void testKernelMatchesStepwiseCorrection() {
+        double acquisitionTimeDiff = 2289;
+        double sensingStartMillis = 1.21543247264E12;
+        int ati = 2291;
+        double atiPrev = 1.21551887264E12;
+        double atiNext = 1.21560527264E12;
+
+        String nonlinearGc1Filename = "ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000";
+        String[] gc1Filenames = new String[]{gc1Filename, nonlinearGc1Filename};
+        for (String gc1 : gc1Filenames) {
+            for (int iChannel = 0; iChannel < 4; iChannel++) {
+                for (int removeDriftCorrIndex = 0; removeDriftCorrIndex < 3; removeDriftCorrIndex++) {
+                    RecalibrationKernel kernel = recalibration.createKernel(gc1, iChannel, removeDriftCorrIndex,
+                                                                            acquisitionTimeDiff, sensingStartMillis,
+                                                                            ati, atiPrev, atiNext);
+                    assertEquals(!(iChannel == Recalibration.CHANNEL1600 && gc1.equals(nonlinearGc1Filename)),
+                                 kernel.isLinear());
+                    for (double reflIn = 0.0; reflIn <= 120.0; reflIn += 7.5) {
+                        double refl1 = reflIn;
+                        if (iChannel == Recalibration.CHANNEL1600) {
+                            refl1 = recalibration.getV16NonlinearityCorrectedReflectance(gc1, reflIn);
+                        }
+                        double refl2 = recalibration.removeDriftCorrection(iChannel, removeDriftCorrIndex,
+                                                                           acquisitionTimeDiff, refl1);
+                        double expected = recalibration.applyDriftCorrection(sensingStartMillis, ati, atiPrev,
+                                                                             atiNext, iChannel, refl2);
+                        assertEquals(expected, kernel.apply(reflIn), 1.0e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRawKernelMatchesReference() {
+        String nonlinearGc1Filename = "ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000";
+        String[] gc1Filenames = new String[]{gc1Filename, nonlinearGc1Filename};
+        for (String gc1 : gc1Filenames) {
+            for (int iChannel = 0; iChannel < 4; iChannel++) {
+                RecalibrationKernel kernel = recalibration.createKernel(gc1, iChannel, 1, 2289, 1.21543247264E12,
+                                                                        2291, 1.21551887264E12, 1.21560527264E12);
+
+                RecalibrationKernel offsetKernel = kernel.toRawSpace(0.02, 1.5, 0.01, -0.5);
+                for (int raw = -100; raw <= 12000; raw += 100) {
+                    double expected = (kernel.apply(raw * 0.02 + 1.5) + 0.5) / 0.01;
+                    assertEquals(expected, offsetKernel.apply((double) raw), 1.0e-6 * Math.abs(expected) + 1.0e-9);
+                }
+
+                RecalibrationKernel rawKernel = kernel.toRawSpace(0.01, 0.0, 0.01, 0.0);
+                for (int raw = -100; raw <= 12000; raw++) {
+                    double expected = kernel.apply(raw * 0.01) / 0.01;
+                    assertEquals(expected, rawKernel.apply((double) raw), 1.0e-6 * Math.abs(expected) + 1.0e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRowKernelsMatchDoubleReference() {
+        String nonlinearGc1Filename = "ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000";
+        String[] gc1Filenames = new String[]{gc1Filename, nonlinearGc1Filename};
+        float[] floatRow = new float[12101];
+        double[] doubleRow = new double[12101];
+        for (String gc1 : gc1Filenames) {
+            for (int iChannel = 0; iChannel < 4; iChannel++) {
+                RecalibrationKernel kernel = recalibration.createKernel(gc1, iChannel, 1, 2289, 1.21543247264E12,
+                                                                        2291, 1.21551887264E12, 1.21560527264E12);
+                for (int i = 0; i < floatRow.length; i++) {
+                    floatRow[i] = (i - 100) * 0.01f;
+                    doubleRow[i] = (i - 100) * 0.01;
+                }
+                kernel.apply(floatRow, floatRow.length);
+                kernel.apply(doubleRow, doubleRow.length);
+                for (int i = 0; i < floatRow.length; i++) {
+                    double expected = kernel.apply((i - 100) * 0.01);
+                    assertEquals(expected, doubleRow[i], 1.0e-12);
+                    assertEquals(expected, floatRow[i], 1.0e-5 * Math.abs(expected) + 1.0e-5);
+                }
+            }
+        }
+
+        // identity must keep the samples, only the given length is recalibrated
+        RecalibrationKernel twice = new RecalibrationKernel(2.0);
+        float[] row = new float[]{-1.0f, 0.0f, 12.5f, 100.0f};
+        new RecalibrationKernel(1.0).apply(row, row.length);
+        assertArrayEquals(new float[]{-1.0f, 0.0f, 12.5f, 100.0f}, row, 0.0f);
+        twice.apply(row, 2);
+        assertArrayEquals(new float[]{-2.0f, 0.0f, 12.5f, 100.0f}, row, 0.0f);
+    }
+
+    @Test
+    public void testLookupTableMatchesDoubleReference() {
+        String nonlinearGc1Filename = "ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000";
+        String[] gc1Filenames = new String[]{gc1Filename, nonlinearGc1Filename};
+        for (String gc1 : gc1Filenames) {
+            for (int iChannel = 0; iChannel < 4; iChannel++) {
+                RecalibrationKernel kernel = recalibration.createKernel(gc1, iChannel, 1, 2289, 1.21543247264E12,
+                                                                        2291, 1.21551887264E12, 1.21560527264E12);
+                short[] lookupTable = kernel.toLookupTable(0.01, 0.0, 0.01, 0.0);
+                assertEquals(RecalibrationKernel.LOOKUP_TABLE_SIZE, lookupTable.length);
+                for (int raw = 0; raw <= 12000; raw++) {
+                    int expected = (int) (kernel.apply(raw * 0.01) / 0.01);
+                    assertEquals(expected, lookupTable[raw], 1);
+                }
+                for (int raw = Short.MIN_VALUE; raw < 0; raw += 7) {
+                    int expected = (int) (kernel.apply(raw * 0.01) / 0.01);
+                    expected = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, expected));
+                    assertEquals(expected, lookupTable[raw & 0xffff], 1);
+                }
+            }
+        }
+
+        // identity must keep all raw samples, a large gain is clipped
+        short[] identity = new RecalibrationKernel(1.0).toLookupTable(0.01, 0.0, 0.01, 0.0);
+        for (int raw = Short.MIN_VALUE; raw <= Short.MAX_VALUE; raw++) {
+            assertEquals(raw, identity[raw & 0xffff]);
+        }
+        short[] clipped = new RecalibrationKernel(10.0).toLookupTable(0.01, 0.0, 0.01, 0.0);
+        assertEquals(Short.MAX_VALUE, clipped[30000]);
+        assertEquals(Short.MIN_VALUE, clipped[-30000 & 0xffff]);
+    }
+
     @Test
     public void testGetAcquisitionTimeIndex() {
         String timestring = "01-FEB-2002 00:00:00";
@@ -127,6 +290,374 @@ public class RecalibrateAATSRReflectancesTest {
         assertEquals(-1, recalibration.getAcquisitionTimeIndex(timestring));
     }
 
+    @Test
+    public void testGetAcquisitionTimeIndexForEachDay() {
+        final long day = 24L * 60L * 60L * 1000L;
+        final long start = recalibration.getTimeInMillis("01-MAR-2002 00:00:00");
+        final long end = recalibration.getTimeInMillis("31-JUL-2010 00:00:00");
+        int expectedIndex = 0;
+        for (long t = start; t < end; t += day) {
+            assertEquals(expectedIndex, recalibration.getAcquisitionTimeIndex(t));
+            assertEquals(expectedIndex, recalibration.getAcquisitionTimeIndex(t + day / 2));
+            assertEquals((double) t, recalibration.getAcquisitionTimeIndexPrevious(expectedIndex), 0.0);
+            expectedIndex++;
+        }
+        assertEquals(-1, recalibration.getAcquisitionTimeIndex(end));
+    }
+
+    @Test
+    public void testGetAcquisitionTimeIndexFromIrregularUserTable() throws IOException {
+        File userDriftTable = File.createTempFile("AATSR_VIS_DRIFT_", ".DAT");
+        userDriftTable.deleteOnExit();
+        FileWriter writer = new FileWriter(userDriftTable);
+        try {
+            for (int i = 0; i < 6; i++) {
+                writer.write("header\n");
+            }
+            writer.write("     0  01-MAR-2002 00:00:00   1.00000   1.00000   1.00000   1.00000\n");
+            writer.write("     1  03-MAR-2002 00:00:00   1.00007   0.99998   1.00004   1.00010\n");
+            writer.write("     2  10-MAR-2002 00:00:00   1.00033   0.99992   1.00017   1.00044\n");
+        } finally {
+            writer.close();
+        }
+
+        Recalibration userRecalibration = new Recalibration(true, userDriftTable);
+        userRecalibration.readDriftTable();
+        assertEquals(-1, userRecalibration.getAcquisitionTimeIndex("28-FEB-2002 12:00:00"));
+        assertEquals(0, userRecalibration.getAcquisitionTimeIndex("01-MAR-2002 00:00:00"));
+        assertEquals(0, userRecalibration.getAcquisitionTimeIndex("02-MAR-2002 12:00:00"));
+        assertEquals(1, userRecalibration.getAcquisitionTimeIndex("03-MAR-2002 00:00:00"));
+        assertEquals(1, userRecalibration.getAcquisitionTimeIndex("09-MAR-2002 23:59:59"));
+        assertEquals(-1, userRecalibration.getAcquisitionTimeIndex("10-MAR-2002 00:00:00"));
+    }
+
+    @Test
+    public void testDriftTableLongerThanFormerLimit() {
+        final long day = 24L * 60L * 60L * 1000L;
+        DriftTable.Builder builder = new DriftTable.Builder(16);
+        for (int i = 0; i < 6000; i++) {
+            builder.add(i * day, 1.0 + i, 2.0, 3.0, 4.0 + i);
+        }
+        DriftTable table = builder.build();
+        assertEquals(6000, table.getLength());
+        assertEquals(5999 * day, table.getTime(5999));
+        assertEquals(5000.0, table.getDrift(Recalibration.CHANNEL550, 4999), 0.0);
+        assertEquals(6003.0, table.getDrift(Recalibration.CHANNEL1600, 5999), 0.0);
+        assertEquals(5500, table.getTimeIndex(5500 * day + 1));
+    }
+
+    @Test
+    public void testBinaryDriftTableMatchesTextTable() throws IOException {
+        File textFile = File.createTempFile("AATSR_VIS_DRIFT_", DriftTableIO.TEXT_EXTENSION);
+        textFile.deleteOnExit();
+        InputStream inputStream = Recalibration.class.getResourceAsStream(Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME);
+        try {
+            Files.copy(inputStream, textFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            inputStream.close();
+        }
+        File binaryFile = DriftTableConverter.convert(textFile);
+        binaryFile.deleteOnExit();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Recalibration.class.getResourceAsStream(Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME)));
+        DriftTable textTable;
+        try {
+            textTable = DriftTableIO.readText(reader);
+        } finally {
+            reader.close();
+        }
+        DriftTable binaryTable = DriftTableIO.readBinary(binaryFile);
+        assertEquals(3075, textTable.getLength());
+        assertEquals(textTable.getLength(), binaryTable.getLength());
+        for (int i = 0; i < textTable.getLength(); i++) {
+            assertEquals(textTable.getTime(i), binaryTable.getTime(i));
+            for (int iChannel = 0; iChannel < 4; iChannel++) {
+                assertEquals(textTable.getDrift(iChannel, i), binaryTable.getDrift(iChannel, i), 0.0);
+            }
+        }
+
+        Recalibration binaryRecalibration = new Recalibration(true, binaryFile);
+        binaryRecalibration.readDriftTable();
+        assertEquals(33, binaryRecalibration.getAcquisitionTimeIndex("03-APR-2002 07:34:45"));
+    }
+
+    @Test
+    public void testDriftTableCache() throws IOException {
+        DriftTableCache cache = new DriftTableCache(2);
+        DriftTable table17 = cache.getResourceTable("AATSR_VIS_DRIFT_V00-17.DAT");
+        assertSame(table17, cache.getResourceTable("AATSR_VIS_DRIFT_V00-17.DAT"));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        DriftTable table15 = cache.getResourceTable("AATSR_VIS_DRIFT_V00-15.DAT");
+        assertEquals(3014, table15.getLength());
+        cache.getResourceTable("AATSR_VIS_DRIFT_V00-17.DAT");
+        // capacity exceeded: the least recently used table (V00-15) is evicted
+        cache.getResourceTable("AATSR_VIS_DRIFT_V00-14.DAT");
+        assertEquals(2, cache.size());
+        assertSame(table17, cache.getResourceTable("AATSR_VIS_DRIFT_V00-17.DAT"));
+        assertNotSame(table15, cache.getResourceTable("AATSR_VIS_DRIFT_V00-15.DAT"));
+
+        // failures are not cached
+        for (int i = 0; i < 2; i++) {
+            final long missCount = cache.getMissCount();
+            try {
+                cache.getResourceTable("AATSR_VIS_DRIFT_V00-99.DAT");
+                fail("IOException expected");
+            } catch (IOException expected) {
+                assertEquals(missCount + 1, cache.getMissCount());
+            }
+        }
+    }
+
+    @Test
+    public void testComparisonDriftTables() throws IOException {
+        assertEquals("V00_13", RecalibrateAATSRReflectancesOp.getDriftTableLabel("V00-13"));
+        assertEquals("V00_14", RecalibrateAATSRReflectancesOp.getDriftTableLabel("AATSR_VIS_DRIFT_V00-14.DAT"));
+        assertEquals("my_table", RecalibrateAATSRReflectancesOp.getDriftTableLabel("/data/tables/my table.txt"));
+
+        DriftTable v13 = RecalibrateAATSRReflectancesOp.getComparisonDriftTable("V00-13");
+        assertSame(v13, RecalibrateAATSRReflectancesOp.getComparisonDriftTable("AATSR_VIS_DRIFT_V00-13.DAT"));
+        DriftTable v17 = RecalibrateAATSRReflectancesOp.getComparisonDriftTable("V00-17");
+        assertSame(v17, DriftTableCache.getInstance().getResourceTable(Recalibration.DRIFT_TABLE_DEFAULT_FILE_NAME));
+        assertTrue(v17.getLength() > v13.getLength());
+
+        // one kernel per table version, from the same product metadata
+        final String sensingStart = "03-APR-2008 07:34:45";
+        final Map<String, Integer> bandChannels =
+                Collections.singletonMap("reflec_nadir_0550", Recalibration.CHANNEL550);
+        RecalibrationKernel kernel13 = new RecalibrationContext(new Recalibration(v13), sensingStart, vc1Filename,
+                                                                gc1Filename, bandChannels).getKernel("reflec_nadir_0550");
+        RecalibrationKernel kernel17 = new RecalibrationContext(new Recalibration(v17), sensingStart, vc1Filename,
+                                                                gc1Filename, bandChannels).getKernel("reflec_nadir_0550");
+        RecalibrationKernel reference = new RecalibrationContext(recalibration, sensingStart, vc1Filename,
+                                                                 gc1Filename, bandChannels).getKernel("reflec_nadir_0550");
+        assertEquals(reference.apply(50.0), kernel17.apply(50.0), 0.0);
+        assertTrue(kernel13.apply(50.0) > 0.0);
+    }
+
+    @Test
+    public void testRegionSubset() {
+        Product sourceProduct = new SyntheticProductGenerator(SUBSET_SCENE_WIDTH, SUBSET_SCENE_HEIGHT).createProduct();
+        Rectangle rows = new Rectangle(0, 50, SUBSET_SCENE_WIDTH, 40);
+        Product fullTarget = recalibrate(sourceProduct, null, null);
+        Product subsetTarget = recalibrate(sourceProduct, "region", rows);
+        try {
+            assertEquals(SUBSET_SCENE_WIDTH, subsetTarget.getSceneRasterWidth());
+            assertEquals(rows.height, subsetTarget.getSceneRasterHeight());
+            assertEquals("YES", subsetTarget.getMetadataRoot().getElement("MPH").getAttributeString("RECALIBRATED"));
+
+            for (String bandName : SyntheticProductGenerator.REFLEC_BAND_NAMES) {
+                Raster subsetData = subsetTarget.getBand(bandName).getSourceImage().getData();
+                Raster fullData = fullTarget.getBand(bandName).getSourceImage().getData(rows);
+                for (int y = 0; y < rows.height; y++) {
+                    for (int x = 0; x < rows.width; x++) {
+                        assertEquals(bandName + " at " + x + "," + y,
+                                     fullData.getSample(x, rows.y + y, 0), subsetData.getSample(x, y, 0));
+                    }
+                }
+            }
+        } finally {
+            subsetTarget.dispose();
+            fullTarget.dispose();
+            sourceProduct.dispose();
+        }
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testRegionSubsetOutsideScene() {
+        Product sourceProduct = new SyntheticProductGenerator(SUBSET_SCENE_WIDTH, SUBSET_SCENE_HEIGHT).createProduct();
+        try {
+            recalibrate(sourceProduct, "region", new Rectangle(0, SUBSET_SCENE_HEIGHT + 10, SUBSET_SCENE_WIDTH, 10));
+        } finally {
+            sourceProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testBandSubset() {
+        Product sourceProduct = new SyntheticProductGenerator(SUBSET_SCENE_WIDTH, SUBSET_SCENE_HEIGHT).createProduct();
+        Product target = recalibrate(sourceProduct, "sourceBandNames",
+                                     new String[]{EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME});
+        try {
+            assertEquals(SUBSET_SCENE_HEIGHT, target.getSceneRasterHeight());
+            assertTrue(target.containsBand(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME));
+            // the flag bands are always kept
+            assertTrue(target.containsBand(RecalibrateAATSRReflectancesOp.CONFID_NADIR_FLAGS));
+            assertTrue(target.containsBand(RecalibrateAATSRReflectancesOp.CONFID_FWARD_FLAGS));
+            assertTrue(target.containsBand(RecalibrateAATSRReflectancesOp.CLOUD_NADIR_FLAGS));
+            assertTrue(target.containsBand(RecalibrateAATSRReflectancesOp.CLOUD_FWARD_FLAGS));
+            for (String bandName : SyntheticProductGenerator.REFLEC_BAND_NAMES) {
+                if (!bandName.equals(EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME)) {
+                    assertFalse(bandName, target.containsBand(bandName));
+                }
+            }
+        } finally {
+            target.dispose();
+            sourceProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testInvalidPixels() {
+        assertEquals(RecalibrateAATSRReflectancesOp.CONFID_NADIR_FLAGS,
+                     RecalibrateAATSRReflectancesOp.getConfidFlagBandName("reflec_nadir_0550"));
+        assertEquals(RecalibrateAATSRReflectancesOp.CONFID_FWARD_FLAGS,
+                     RecalibrateAATSRReflectancesOp.getConfidFlagBandName("reflec_fward_1600"));
+
+        // BLANKING, SCAN_ABSENT, ABSENT, NOT_DECOMPR and UNFILLED pixels are not recalibrated
+        assertFalse(RecalibrateAATSRReflectancesOp.isInvalidPixel(0));
+        assertTrue(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x001));
+        assertFalse(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x002));
+        assertTrue(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x004));
+        assertTrue(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x008));
+        assertTrue(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x010));
+        assertFalse(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x020 | 0x040 | 0x080 | 0x100));
+        assertTrue(RecalibrateAATSRReflectancesOp.isInvalidPixel(0x200 | 0x002));
+    }
+
+    @Test
+    public void testPreferredTileSize() {
+        final long mega = 1024L * 1024L;
+        // 1 GB heap, 8 processors, 8 bands: 2 MB per stack of 512 x 36 bytes per row
+        assertEquals(new Dimension(512, 96),
+                     RecalibrateAATSRReflectancesOp.getPreferredTileSize(512, 40000, 8, 1024 * mega, 8, 0, 0));
+        // large heaps are limited to the maximum height
+        assertEquals(new Dimension(512, RecalibrateAATSRReflectancesOp.MAX_TILE_HEIGHT),
+                     RecalibrateAATSRReflectancesOp.getPreferredTileSize(512, 40000, 8, 64 * 1024 * mega, 2, 0, 0));
+        // small heaps and small scenes
+        assertEquals(new Dimension(512, RecalibrateAATSRReflectancesOp.MIN_TILE_HEIGHT),
+                     RecalibrateAATSRReflectancesOp.getPreferredTileSize(512, 40000, 8, 16 * mega, 16, 0, 0));
+        assertEquals(new Dimension(512, 10),
+                     RecalibrateAATSRReflectancesOp.getPreferredTileSize(512, 10, 8, 1024 * mega, 8, 0, 0));
+        // requested sizes
+        assertEquals(new Dimension(256, 100),
+                     RecalibrateAATSRReflectancesOp.getPreferredTileSize(512, 40000, 8, 1024 * mega, 8, 256, 100));
+        assertEquals(new Dimension(512, 40000),
+                     RecalibrateAATSRReflectancesOp.getPreferredTileSize(512, 40000, 8, 1024 * mega, 8, 1000, 50000));
+    }
+
+    @Test
+    public void testKernelExpression() {
+        assertEquals("1.5 * reflec_nadir_0550_original",
+                     new RecalibrationKernel(1.5).toExpression("reflec_nadir_0550_original"));
+        RecalibrationKernel kernel = new RecalibrationKernel(1.1, new double[]{0.25, 1.1, -0.002, 3.0E-6});
+        assertEquals("0.25 + r * (1.1 + r * (-0.002 + r * 3.0E-6))", kernel.toExpression("r"));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        RecalibrationMetrics metrics = RecalibrationMetrics.getInstance();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(RecalibrationMetrics.OBJECT_NAME)));
+        metrics.reset();
+
+        metrics.tileStackComputed(new String[]{"reflec_nadir_0550", "reflec_nadir_0670"}, 512 * 64, 2000000L, 6000000L);
+        metrics.tileStackComputed(new String[]{"reflec_nadir_0550"}, 512 * 32, 0L, 1000000L);
+        metrics.productPlanned(512 * 64);
+        metrics.productRecalibrated();
+        metrics.productSkipped(RecalibrateAATSRReflectancesOp.SKIPPED_OUT_OF_RANGE);
+        metrics.productSkipped(RecalibrateAATSRReflectancesOp.SKIPPED_OUT_OF_RANGE);
+
+        assertEquals(3, metrics.getTilesComputed());
+        assertEquals(Long.valueOf(2), metrics.getTilesComputedByBand().get("reflec_nadir_0550"));
+        assertEquals(Long.valueOf(1), metrics.getTilesComputedByBand().get("reflec_nadir_0670"));
+        assertEquals(2 * 512 * 64 + 512 * 32, metrics.getPixelsRecalibrated());
+        assertEquals(2, metrics.getSourceFetchMillis());
+        assertEquals(7, metrics.getComputeMillis());
+        assertEquals(1, metrics.getProductsPlanned());
+        assertEquals(512 * 64, metrics.getPixelsCopiedPlanned());
+        assertEquals(1, metrics.getProductsRecalibrated());
+        assertEquals(2, metrics.getProductsSkipped());
+        assertEquals(Long.valueOf(2),
+                     metrics.getProductsSkippedByReason().get(RecalibrateAATSRReflectancesOp.SKIPPED_OUT_OF_RANGE));
+
+        metrics.reset();
+        assertEquals(0, metrics.getTilesComputed());
+        assertTrue(metrics.getTilesComputedByBand().isEmpty());
+    }
+
+    @Test
+    public void testRenameSymbol() {
+        assertEquals("reflec_nadir_0550_original > 0 && reflec_nadir_0550_original.raw != -1 && " +
+                     "reflec_nadir_0550_V00_13 > 0 && !confid_flags_nadir.BLANKING",
+                     RecalibrateAATSRReflectancesOp.renameSymbol(
+                             "reflec_nadir_0550 > 0 && reflec_nadir_0550.raw != -1 && " +
+                             "reflec_nadir_0550_V00_13 > 0 && !confid_flags_nadir.BLANKING",
+                             "reflec_nadir_0550", "reflec_nadir_0550_original"));
+        assertNull(RecalibrateAATSRReflectancesOp.renameSymbol(null, "reflec_nadir_0550",
+                                                               "reflec_nadir_0550_original"));
+    }
+
+    @Test
+    public void testVirtualBandsMatchComputedBands() {
+        final String bandName = EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME;
+        final String originalBandName = bandName + RecalibrateAATSRReflectancesOp.ORIGINAL_BAND_SUFFIX;
+        Product sourceProduct =
+                new SyntheticProductGenerator(SUBSET_SCENE_WIDTH, SUBSET_SCENE_HEIGHT).createProduct();
+        // exception codes, absent pixels in the nadir view and a no-data value
+        for (String reflecBandName : SyntheticProductGenerator.REFLEC_BAND_NAMES) {
+            ProductData samples = sourceProduct.getBand(reflecBandName).getRasterData();
+            for (int i = 0; i < samples.getNumElems(); i += 7) {
+                samples.setElemIntAt(i, -1 - i % 3);
+            }
+        }
+        ProductData confidFlags =
+                sourceProduct.getBand(RecalibrateAATSRReflectancesOp.CONFID_NADIR_FLAGS).getRasterData();
+        for (int i = 0; i < confidFlags.getNumElems(); i += 5) {
+            confidFlags.setElemIntAt(i, 0x008);
+        }
+        Band sourceBand = sourceProduct.getBand(bandName);
+        sourceBand.setNoDataValue(-2);
+        sourceBand.setNoDataValueUsed(true);
+        sourceBand.setValidPixelExpression(bandName + " > -1");
+
+        Product computedTarget = recalibrate(sourceProduct, null, null);
+        Product virtualTarget = recalibrate(sourceProduct, "writeVirtualBands", Boolean.TRUE);
+        try {
+            Band virtualBand = virtualTarget.getBand(bandName);
+            assertTrue(virtualBand instanceof VirtualBand);
+            assertEquals(originalBandName + " > -1", virtualBand.getValidPixelExpression());
+            assertEquals(originalBandName + " > -1",
+                         virtualTarget.getBand(originalBandName).getValidPixelExpression());
+            assertTrue(virtualBand.isNoDataValueUsed());
+            assertEquals(-0.02, virtualBand.getNoDataValue(), 1.0e-9);
+
+            for (String reflecBandName : SyntheticProductGenerator.REFLEC_BAND_NAMES) {
+                Raster sourceData = sourceProduct.getBand(reflecBandName).getGeophysicalImage().getData();
+                Raster computedData = computedTarget.getBand(reflecBandName).getGeophysicalImage().getData();
+                Raster virtualData = virtualTarget.getBand(reflecBandName).getGeophysicalImage().getData();
+                int passedThrough = 0;
+                for (int y = 0; y < SUBSET_SCENE_HEIGHT; y++) {
+                    for (int x = 0; x < SUBSET_SCENE_WIDTH; x++) {
+                        final double computed = computedData.getSampleDouble(x, y, 0);
+                        final double virtual = virtualData.getSampleDouble(x, y, 0);
+                        // computed bands are truncated to the 16 bit raw samples
+                        assertEquals(reflecBandName + " at " + x + "," + y, computed, virtual, 0.01 + 1.0e-6);
+                        if (computed == sourceData.getSampleDouble(x, y, 0) && computed <= 0.0) {
+                            passedThrough++;
+                        }
+                    }
+                }
+                assertTrue(passedThrough > 0);
+            }
+        } finally {
+            virtualTarget.dispose();
+            computedTarget.dispose();
+            sourceProduct.dispose();
+        }
+    }
+
+    private static Product recalibrate(Product sourceProduct, String parameterName, Object parameterValue) {
+        RecalibrateAATSRReflectancesOp op = new RecalibrateAATSRReflectancesOp();
+        op.setSourceProduct(sourceProduct);
+        if (parameterName != null) {
+            op.setParameter(parameterName, parameterValue);
+        }
+        return op.getTargetProduct();
+    }
+
     @Test(expected = StringIndexOutOfBoundsException.class)
     public void testGetAcquisitionTimeIndex_TimeStringToShort() {
         recalibration.getAcquisitionTimeIndex("bla");
@@ -0,0 +1,46 @@
+package org.esa.beam.aatsrrecalibration.operators;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for class {@link Recalibration}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class RecalibrationTest {
+
+    private Recalibration recalibration;
+
+    @Before
+    public void setUp() throws Exception {
+        recalibration = new Recalibration(false, null);
+        recalibration.readDriftTable();
+    }
+
+    @Test
+    public void testAcquisitionTimeIndex() {
+        // rows of the default drift table (one entry per day, row 0 is 01-MAR-2002):
+        // 2224  02-APR-2008 00:00:00
+        // 2225  03-APR-2008 00:00:00
+        // month must not be shifted by one (would give the row of 03-MAY-2008), and the time of day
+        // must be taken from the string (not from the wall clock) to select the right row at day boundaries
+        assertEquals(2225, recalibration.getAcquisitionTimeIndex("03-APR-2008 07:34:45"));
+        assertEquals(2225, recalibration.getAcquisitionTimeIndex("03-04-2008 07:34:45"));
+        assertEquals(2225, recalibration.getAcquisitionTimeIndex("03-APR-2008 00:00:00"));
+        assertEquals(2224, recalibration.getAcquisitionTimeIndex("02-APR-2008 23:59:59"));
+        assertEquals(0, recalibration.getAcquisitionTimeIndex("01-MAR-2002 12:00:00"));
+    }
+
+    @Test
+    public void testAcquisitionTimeIndexPrevious() {
+        final int index = recalibration.getAcquisitionTimeIndex("03-APR-2008 07:34:45");
+        assertEquals(recalibration.getTimeInMillis("03-APR-2008 00:00:00"),
+                     recalibration.getAcquisitionTimeIndexPrevious(index), 0.0);
+        assertEquals(recalibration.getTimeInMillis("04-APR-2008 00:00:00"),
+                     recalibration.getAcquisitionTimeIndexNext(index), 0.0);
+    }
+}
@@ -0,0 +1,94 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for class {@link DiagnosticsChannel}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class DiagnosticsChannelTest {
+
+    @Test
+    public void testPublishDoesNotBlock() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<DiagnosticEvent> events = new CopyOnWriteArrayList<DiagnosticEvent>();
+        DiagnosticsChannel channel = new DiagnosticsChannel(2);
+        channel.addListener(new DiagnosticsListener() {
+            @Override
+            public void eventPublished(DiagnosticEvent event) {
+                try {
+                    // a dialog waiting for the user
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add(event);
+            }
+        });
+
+        final long t0 = System.currentTimeMillis();
+        int published = 0;
+        for (int i = 0; i < 100; i++) {
+            if (channel.publish(DiagnosticEvent.Type.SKIPPED, "product" + i, "already recalibrated")) {
+                published++;
+            }
+        }
+        assertTrue(System.currentTimeMillis() - t0 < 5000);
+        assertTrue(published >= 2 && published <= 3);
+        assertEquals(100 - published, channel.getDroppedCount());
+        assertFalse(channel.flush(50));
+
+        release.countDown();
+        assertTrue(channel.flush(5000));
+        assertEquals(published, events.size());
+        assertEquals("product0", events.get(0).getProductName());
+        assertEquals("[SKIPPED] product0: already recalibrated", events.get(0).toString());
+    }
+
+    @Test
+    public void testCloseDeliversPendingEventsAndStopsThread() throws InterruptedException {
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final List<DiagnosticEvent> events = new CopyOnWriteArrayList<DiagnosticEvent>();
+        DiagnosticsChannel channel = new DiagnosticsChannel(10);
+        assertFalse(channel.isDispatching());
+        channel.addListener(new DiagnosticsListener() {
+            @Override
+            public void eventPublished(DiagnosticEvent event) {
+                delivering.countDown();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add(event);
+            }
+        });
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(channel.publish(DiagnosticEvent.Type.LOG, "product" + i, "tile failed"));
+        }
+        assertTrue(channel.isDispatching());
+        assertTrue(delivering.await(5, TimeUnit.SECONDS));
+        channel.close();
+        assertFalse(channel.isDispatching());
+        assertEquals(5, events.size());
+        assertEquals("product4", events.get(4).getProductName());
+        assertTrue(channel.flush(0));
+
+        // publishing after close starts the delivery again
+        assertTrue(channel.publish(DiagnosticEvent.Type.LOG, "product5", "tile failed"));
+        assertTrue(channel.flush(5000));
+        assertEquals(6, events.size());
+        channel.close();
+        assertFalse(channel.isDispatching());
+    }
+}
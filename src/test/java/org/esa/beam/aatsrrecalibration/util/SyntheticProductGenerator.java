@@ -0,0 +1,305 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+import org.esa.beam.dataio.envisat.EnvisatConstants;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generator for synthetic AATSR L1b products, for tests and benchmarks without access to real N1 files.
+ * The products have everything the recalibration operator needs: the eight reflectance bands, the
+ * brightness temperature bands, the confidence and cloud flag bands with their flag codings, the MPH
+ * sensing start and the VC1 and GC1 file names in DSD.31 and DSD.32.
+ * <p/>
+ * The VC1 file name is chosen according to the requested drift correction regime, the GC1 file name
+ * according to whether the 1.6um nonlinearity correction shall be required.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class SyntheticProductGenerator {
+
+    public static final String[] REFLEC_BAND_NAMES = {
+            EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0550_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0670_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_NADIR_0870_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_NADIR_1600_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_FWARD_0550_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_FWARD_0670_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_FWARD_0870_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_REFLEC_FWARD_1600_BAND_NAME
+    };
+
+    public static final String[] BTEMP_BAND_NAMES = {
+            EnvisatConstants.AATSR_L1B_BTEMP_NADIR_0370_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_BTEMP_NADIR_1100_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_BTEMP_NADIR_1200_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_BTEMP_FWARD_0370_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_BTEMP_FWARD_1100_BAND_NAME,
+            EnvisatConstants.AATSR_L1B_BTEMP_FWARD_1200_BAND_NAME
+    };
+
+    private static final String CONFID_NADIR_FLAGS = "confid_flags_nadir";
+    private static final String CONFID_FWARD_FLAGS = "confid_flags_fward";
+    private static final String CLOUD_NADIR_FLAGS = "cloud_flags_nadir";
+    private static final String CLOUD_FWARD_FLAGS = "cloud_flags_fward";
+
+    private static final String[] CONFID_FLAG_NAMES = {
+            "BLANKING", "COSMETIC", "SCAN_ABSENT", "ABSENT", "NOT_DECOMPR",
+            "NO_SIGNAL", "SATURATION", "OUT_OF_RANGE", "NO_CALIB", "UNFILLED"
+    };
+    private static final String[] CLOUD_FLAG_NAMES = {
+            "LAND", "CLOUDY", "SUN_GLINT"
+    };
+
+    public static final String GC1_FILE_NAME = "ATS_GC1_AXVIEC20070720_093834_20020301_000000_20200101_000000";
+    // GC1 file for which the 1.6um nonlinearity correction has not yet been applied
+    public static final String NONLINEAR_GC1_FILE_NAME = "ATS_GC1_AXVIEC20020123_073430_20020101_000000_20200101_000000";
+
+    public static final String DEFAULT_SENSING_START = "03-APR-2008 07:34:45.000000";
+
+    private static final String DIMAP_FORMAT = "BEAM-DIMAP";
+
+    /**
+     * Drift correction which had been applied in the L1b processing, identified by the generation time of the VC1 file.
+     */
+    public enum DriftCorrectionRegime {
+        /**
+         * VC1 generated before 29-NOV-2005
+         */
+        NONE("20050601_120000"),
+        /**
+         * VC1 generated between 29-NOV-2005 and 18-DEC-2006
+         */
+        EXPONENTIAL("20060601_120000"),
+        /**
+         * VC1 generated after 18-DEC-2006, outside the 2010 gap
+         */
+        THIN_FILM("20080607_043326"),
+        /**
+         * VC1 generated between 04-APR-2010 and 12-JUL-2010, without drift correction
+         */
+        NO_CORRECTION_GAP_2010("20100501_120000");
+
+        private final String vc1GenerationTime;
+
+        private DriftCorrectionRegime(String vc1GenerationTime) {
+            this.vc1GenerationTime = vc1GenerationTime;
+        }
+
+        /**
+         * @return the VC1 file name of this regime, e.g. ATS_VC1_AXVIEC20080607_043326_20080607_043326_20080607_043326
+         */
+        public String getVc1FileName() {
+            return "ATS_VC1_AXVIEC" + vc1GenerationTime + "_" + vc1GenerationTime + "_" + vc1GenerationTime;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private String productName;
+    private String sensingStart = DEFAULT_SENSING_START;
+    private DriftCorrectionRegime regime = DriftCorrectionRegime.THIN_FILM;
+    private boolean nonlinearGc1;
+    private int reflectanceDataType = ProductData.TYPE_INT16;
+    private boolean recalibrated;
+    private long seed = 42L;
+
+    /**
+     * @param width  - scene width, 512 for AATSR
+     * @param height - scene height
+     */
+    public SyntheticProductGenerator(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid scene size " + width + " x " + height + ".");
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public SyntheticProductGenerator setProductName(String productName) {
+        this.productName = productName;
+        return this;
+    }
+
+    /**
+     * @param sensingStart - MPH sensing start, e.g. 03-APR-2008 07:34:45.000000
+     *
+     * @return this generator
+     */
+    public SyntheticProductGenerator setSensingStart(String sensingStart) {
+        // fail early rather than in the operator
+        TimeParser.parseMillis(sensingStart.substring(0, 20));
+        this.sensingStart = sensingStart;
+        return this;
+    }
+
+    public SyntheticProductGenerator setDriftCorrectionRegime(DriftCorrectionRegime regime) {
+        this.regime = regime;
+        return this;
+    }
+
+    /**
+     * @param nonlinearGc1 - true if the GC1 file shall require the 1.6um nonlinearity correction
+     *
+     * @return this generator
+     */
+    public SyntheticProductGenerator setNonlinearGc1(boolean nonlinearGc1) {
+        this.nonlinearGc1 = nonlinearGc1;
+        return this;
+    }
+
+    /**
+     * @param reflectanceDataType - {@link ProductData#TYPE_INT16} (scaled, as in L1b products) or
+     *                            {@link ProductData#TYPE_FLOAT32}
+     *
+     * @return this generator
+     */
+    public SyntheticProductGenerator setReflectanceDataType(int reflectanceDataType) {
+        if (reflectanceDataType != ProductData.TYPE_INT16 && reflectanceDataType != ProductData.TYPE_FLOAT32) {
+            throw new IllegalArgumentException("Unsupported reflectance data type " + reflectanceDataType + ".");
+        }
+        this.reflectanceDataType = reflectanceDataType;
+        return this;
+    }
+
+    /**
+     * @param recalibrated - true if the product shall be flagged as already recalibrated in the MPH
+     *
+     * @return this generator
+     */
+    public SyntheticProductGenerator setRecalibrated(boolean recalibrated) {
+        this.recalibrated = recalibrated;
+        return this;
+    }
+
+    public SyntheticProductGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public String getVc1FileName() {
+        return regime.getVc1FileName();
+    }
+
+    public String getGc1FileName() {
+        return nonlinearGc1 ? NONLINEAR_GC1_FILE_NAME : GC1_FILE_NAME;
+    }
+
+    /**
+     * This method creates the product in memory
+     *
+     * @return the product
+     */
+    public Product createProduct() {
+        Product product = new Product(getProductName(), EnvisatConstants.AATSR_L1B_TOA_PRODUCT_TYPE_NAME,
+                                      width, height);
+        Random random = new Random(seed);
+
+        for (String bandName : REFLEC_BAND_NAMES) {
+            Band band = product.addBand(bandName, reflectanceDataType);
+            band.setUnit("%");
+            if (reflectanceDataType == ProductData.TYPE_INT16) {
+                band.setScalingFactor(0.01);
+                band.setRasterData(ProductData.createInstance(createSamples(random, 0, 10000)));
+            } else {
+                float[] samples = new float[width * height];
+                for (int i = 0; i < samples.length; i++) {
+                    samples[i] = random.nextInt(10000) * 0.01f;
+                }
+                band.setRasterData(ProductData.createInstance(samples));
+            }
+        }
+        for (String bandName : BTEMP_BAND_NAMES) {
+            Band band = product.addBand(bandName, ProductData.TYPE_INT16);
+            band.setUnit("K");
+            band.setScalingFactor(0.01);
+            band.setRasterData(ProductData.createInstance(createSamples(random, 22000, 31000)));
+        }
+
+        addFlagBand(product, CONFID_NADIR_FLAGS, CONFID_FLAG_NAMES);
+        addFlagBand(product, CONFID_FWARD_FLAGS, CONFID_FLAG_NAMES);
+        addFlagBand(product, CLOUD_NADIR_FLAGS, CLOUD_FLAG_NAMES);
+        addFlagBand(product, CLOUD_FWARD_FLAGS, CLOUD_FLAG_NAMES);
+
+        MetadataElement mph = new MetadataElement("MPH");
+        mph.setAttributeString("PRODUCT", getProductName());
+        mph.setAttributeString("SENSING_START", sensingStart);
+        if (recalibrated) {
+            mph.setAttributeString("RECALIBRATED", "YES");
+        }
+        product.getMetadataRoot().addElement(mph);
+
+        MetadataElement dsd = new MetadataElement("DSD");
+        MetadataElement vc1 = new MetadataElement("DSD.31");
+        vc1.setAttributeString("DATASET_NAME", "VISIBLE_CALIBRATION_FILE");
+        vc1.setAttributeString("FILE_NAME", getVc1FileName());
+        dsd.addElement(vc1);
+        MetadataElement gc1 = new MetadataElement("DSD.32");
+        gc1.setAttributeString("DATASET_NAME", "GENERAL_CALIBRATION_FILE");
+        gc1.setAttributeString("FILE_NAME", getGc1FileName());
+        dsd.addElement(gc1);
+        product.getMetadataRoot().addElement(dsd);
+
+        return product;
+    }
+
+    /**
+     * This method creates the product and writes it in BEAM-DIMAP format
+     *
+     * @param file - the target file
+     *
+     * @return the product
+     *
+     * @throws IOException if the product cannot be written
+     */
+    public Product writeProduct(File file) throws IOException {
+        Product product = createProduct();
+        ProductIO.writeProduct(product, file, DIMAP_FORMAT, false);
+        return product;
+    }
+
+    private String getProductName() {
+        if (productName != null) {
+            return productName;
+        }
+        // e.g. ATS_TOA_1PNPDE20080403_073445_synthetic
+        final String date = sensingStart.substring(0, 11);
+        return EnvisatConstants.AATSR_L1B_TOA_PRODUCT_TYPE_NAME + "NPDE" +
+               date.substring(7, 11) + monthNumber(date.substring(3, 6)) + date.substring(0, 2) + "_" +
+               sensingStart.substring(12, 14) + sensingStart.substring(15, 17) + sensingStart.substring(18, 20) +
+               "_synthetic";
+    }
+
+    private static String monthNumber(String monthName) {
+        final String months = "JANFEBMARAPRMAYJUNJULAUGSEPOCTNOVDEC";
+        final int month = months.indexOf(monthName.toUpperCase()) / 3 + 1;
+        return month < 10 ? "0" + month : String.valueOf(month);
+    }
+
+    private short[] createSamples(Random random, int min, int max) {
+        short[] samples = new short[width * height];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (min + random.nextInt(max - min));
+        }
+        return samples;
+    }
+
+    private void addFlagBand(Product product, String flagBandName, String[] flagNames) {
+        FlagCoding flagCoding = new FlagCoding(flagBandName);
+        for (int i = 0; i < flagNames.length; i++) {
+            flagCoding.addFlag(flagNames[i], 1 << i, null);
+        }
+        product.getFlagCodingGroup().add(flagCoding);
+        Band band = product.addBand(flagBandName, ProductData.TYPE_INT16);
+        band.setSampleCoding(flagCoding);
+        band.setRasterData(ProductData.createInstance(new short[width * height]));
+    }
+}
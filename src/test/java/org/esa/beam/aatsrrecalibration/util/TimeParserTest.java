@@ -0,0 +1,71 @@
+package org.esa.beam.aatsrrecalibration.util;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for class {@link TimeParser}.
+ *
+ * @author Olaf Danne
+ * @version $Revision: $ $Date:  $
+ */
+public class TimeParserTest {
+
+    private static final String[] MONTHS = new String[]{
+            "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
+
+    @Test
+    public void testParseMillisMatchesCalendar() {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2000, Calendar.JANUARY, 1, 7, 34, 45);
+        for (int i = 0; i < 12 * 366; i++) {
+            final int year = calendar.get(Calendar.YEAR);
+            final int month = calendar.get(Calendar.MONTH);
+            final int day = calendar.get(Calendar.DAY_OF_MONTH);
+            final String time = " 07:34:45";
+            final String monthName = String.format("%02d-%s-%04d", day, MONTHS[month], year) + time;
+            final String monthNumber = String.format("%02d-%02d-%04d", day, month + 1, year) + time;
+
+            assertEquals(monthName, calendar.getTimeInMillis(), TimeParser.parseMillis(monthName));
+            assertEquals(monthNumber, calendar.getTimeInMillis(), TimeParser.parseMillis(monthNumber));
+            assertEquals(calendar.getTimeInMillis() / TimeParser.MILLIS_PER_DAY,
+                         TimeParser.parseEpochDay(monthName));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    @Test
+    public void testParseWithoutTimeOfDay() {
+        assertEquals(TimeParser.parseMillis("01-MAR-2002 00:00:00"), TimeParser.parseMillis("01-MAR-2002"));
+        assertEquals(TimeParser.parseMillis("01-MAR-2002 00:00:00"), TimeParser.parseMillis("01-03-2002"));
+        assertEquals(11747L, TimeParser.parseEpochDay("01-03-2002"));
+    }
+
+    @Test
+    public void testParseCompactMillis() {
+        final String vc1Filename = "ATS_VC1_AXVIEC20080607_043326_20080605_062207_20080612_062207";
+        assertEquals(TimeParser.parseMillis("07-JUN-2008 04:33:26"), TimeParser.parseCompactMillis(vc1Filename, 14));
+        assertEquals(TimeParser.parseMillis("05-JUN-2008 06:22:07"), TimeParser.parseCompactMillis(vc1Filename, 30));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalidMonth() {
+        TimeParser.parseMillis("01-XYZ-2002 00:00:00");
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void testParseTooShort() {
+        TimeParser.parseMillis("bla");
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void testParseCompactTooShort() {
+        TimeParser.parseCompactMillis("ATS_VC1_AXVIEC20080607", 14);
+    }
+}